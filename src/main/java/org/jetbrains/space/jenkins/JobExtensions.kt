@@ -1,6 +1,5 @@
 package org.jetbrains.space.jenkins
 
-import hudson.ExtensionList
 import hudson.model.Item
 import hudson.model.Job
 import hudson.security.ACL
@@ -12,6 +11,8 @@ import org.jenkinsci.plugins.workflow.multibranch.BranchJobProperty
 import org.jetbrains.space.jenkins.config.*
 import org.jetbrains.space.jenkins.scm.SpaceSCMSource
 import space.jetbrains.api.runtime.types.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 import java.util.logging.Logger
 
 
@@ -64,19 +65,40 @@ fun SpaceProjectConnection.fetchAppState(spaceUrl: String) = runBlocking {
     }
 }
 
+/**
+ * Retrieves the SpaceCode project connection and SpaceCode URL for a Jenkins job (either standalone or generated by multibranch project one).
+ * <br />
+ * The connection is looked up several times during every build, so the result is cached by job full name
+ * until the SpaceCode connections or Jenkins items configuration change (see [invalidateProjectConnectionsCache]).
+ */
 fun Job<*,*>.getProjectConnection(): Pair<SpaceProjectConnection, String>? {
+    val snapshot = getConnectionsSnapshot()
+    val generation = projectConnectionsCacheGeneration.get()
+    val jobFullName = fullName
+    projectConnectionsCache[jobFullName]
+        ?.takeIf { it.snapshot === snapshot && it.generation == generation }
+        ?.let { return it.projectConnection }
+
+    val projectConnection = resolveProjectConnection(snapshot)
+    // do not cache the result if the cache has been invalidated while resolving, it might be based on the outdated configuration
+    if (projectConnectionsCacheGeneration.get() == generation) {
+        projectConnectionsCache[jobFullName] = CachedProjectConnection(snapshot, generation, projectConnection)
+    }
+    return projectConnection
+}
+
+private fun Job<*,*>.resolveProjectConnection(snapshot: SpaceConnectionsSnapshot): Pair<SpaceProjectConnection, String>? {
     val multiBranchProject = parent as? MultiBranchProject<*, *>
     if (multiBranchProject != null) {
         val source = getMultiBranchSpaceScmSource() ?: return null
-        return multiBranchProject.getProjectConnection(source.spaceConnectionId, source.projectKey)
+        return snapshot.findMultiBranchProjectConnectionWithUrl(multiBranchProject.fullName, source.spaceConnectionId, source.projectKey)
     }
 
     val jobProperty = getProperty(SpaceProjectConnectionJobProperty::class.java)
     if (jobProperty != null) {
-        return ExtensionList.lookupSingleton(SpacePluginConfiguration::class.java)
-            .connections.firstOrNull { it.id == jobProperty.spaceConnectionId }
+        return snapshot.getConnection(jobProperty.spaceConnectionId)
             ?.let { rootConnection ->
-                rootConnection.projectConnectionsByJob?.get(fullName)
+                snapshot.getJobConnection(rootConnection.id, fullName)
                     ?.let { it to rootConnection.baseUrl }
             }
     }
@@ -84,6 +106,25 @@ fun Job<*,*>.getProjectConnection(): Pair<SpaceProjectConnection, String>? {
     return null
 }
 
+/**
+ * Drops all the cached results of [getProjectConnection].
+ * Called whenever a Jenkins job, workflow or multibranch project is updated, renamed, moved or removed.
+ */
+fun invalidateProjectConnectionsCache() {
+    projectConnectionsCacheGeneration.incrementAndGet()
+    projectConnectionsCache.clear()
+}
+
+private class CachedProjectConnection(
+    val snapshot: SpaceConnectionsSnapshot,
+    val generation: Long,
+    val projectConnection: Pair<SpaceProjectConnection, String>?
+)
+
+private val projectConnectionsCache = ConcurrentHashMap<String, CachedProjectConnection>()
+
+private val projectConnectionsCacheGeneration = AtomicLong()
+
 fun Job<*, *>.getMultiBranchSpaceScmSource(): SpaceSCMSource? {
     val branchJobProperty = getProperty(BranchJobProperty::class.java)
     val multiBranchProject = (parent as? MultiBranchProject<*, *>) ?: return null
@@ -92,11 +133,19 @@ fun Job<*, *>.getMultiBranchSpaceScmSource(): SpaceSCMSource? {
 }
 
 fun MultiBranchProject<*, *>.getProjectConnection(spaceConnectionId: String, spaceProjectKey: String) =
-    ExtensionList.lookupSingleton(SpacePluginConfiguration::class.java).connections
-        .firstOrNull { it.id == spaceConnectionId }
+    getConnectionsSnapshot().findMultiBranchProjectConnectionWithUrl(getFullName(), spaceConnectionId, spaceProjectKey)
+
+/**
+ * Returns the project-level connection for a branch source of a multibranch project together with the SpaceCode URL of its parent connection.
+ */
+private fun SpaceConnectionsSnapshot.findMultiBranchProjectConnectionWithUrl(
+    projectFullName: String,
+    spaceConnectionId: String,
+    spaceProjectKey: String
+): Pair<SpaceProjectConnection, String>? =
+    getConnection(spaceConnectionId)
         ?.let { rootConnection ->
-            rootConnection.projectConnectionsByMultibranchFolder?.get(getFullName())
-                ?.firstOrNull { it.projectKey == spaceProjectKey }
+            getMultiBranchProjectConnection(spaceConnectionId, projectFullName, spaceProjectKey)
                 ?.let { it to rootConnection.baseUrl }
         }
 
@@ -0,0 +1,73 @@
+package org.jetbrains.space.jenkins
+
+import jenkins.util.SystemProperties
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.withTimeoutOrNull
+import space.jetbrains.api.runtime.types.*
+
+/**
+ * Bounded execution lanes for processing the requests from SpaceCode, one per payload kind.
+ *
+ * Each lane limits the number of requests of its kind being processed concurrently,
+ * so that a flood of webhook callbacks on pushes cannot delay safe merge commands or application authorization events,
+ * which SpaceCode expects to be answered quickly.
+ * A request that cannot enter its lane within the wait timeout is rejected with 503 status code.
+ *
+ * Concurrency and wait timeout of each lane can be configured with the system properties
+ * `org.jetbrains.space.jenkins.SpacePayloadHandler.<lane>.concurrency` and `org.jetbrains.space.jenkins.SpacePayloadHandler.<lane>.waitTimeoutMillis`,
+ * where `<lane>` is one of `application`, `safeMerge` or `webhook`.
+ */
+enum class PayloadLane(propertyName: String, defaultConcurrency: Int, defaultWaitTimeoutMillis: Int) {
+    /**
+     * App installation and uninstallation, application authorization events
+     */
+    APPLICATION("application", 2, 30_000),
+
+    /**
+     * Safe merge commands (start, stop and fetch status)
+     */
+    SAFE_MERGE("safeMerge", 8, 10_000),
+
+    /**
+     * Webhook callbacks that trigger builds or multibranch project heads discovery.
+     * They wait for a slot only briefly, so that a flood of them is answered with 503 status code right away
+     * instead of piling up request threads of the servlet container.
+     */
+    WEBHOOK("webhook", 4, 1_000);
+
+    val concurrency = SystemProperties.getInteger("$PROPERTY_PREFIX.$propertyName.concurrency", defaultConcurrency).coerceAtLeast(1)
+
+    val waitTimeoutMillis = SystemProperties.getInteger("$PROPERTY_PREFIX.$propertyName.waitTimeoutMillis", defaultWaitTimeoutMillis).toLong()
+
+    val semaphore = Semaphore(concurrency)
+
+    /**
+     * Runs the given block once a slot in this lane is available
+     * or returns null without running it if no slot becomes available within the wait timeout.
+     */
+    suspend inline fun <T> process(block: () -> T): T? {
+        withTimeoutOrNull(waitTimeoutMillis) { semaphore.acquire() } ?: return null
+        try {
+            return block()
+        } finally {
+            semaphore.release()
+        }
+    }
+
+    companion object {
+        /**
+         * Returns the lane for processing the given payload.
+         */
+        fun of(payload: ApplicationPayload) =
+            when (payload) {
+                is SafeMergeCommandPayload ->
+                    SAFE_MERGE
+                is WebhookRequestPayload ->
+                    if (payload.payload is ApplicationAuthorizedWebhookEvent) APPLICATION else WEBHOOK
+                else ->
+                    APPLICATION
+            }
+    }
+}
+
+private val PROPERTY_PREFIX = SpacePayloadHandler::class.java.name
@@ -1,9 +1,11 @@
 package org.jetbrains.space.jenkins
 
 import hudson.security.ACL
+import io.ktor.client.engine.java.*
 import io.ktor.http.*
 import io.ktor.utils.io.charsets.*
 import jenkins.model.Jenkins
+import jenkins.util.SystemProperties
 import kotlinx.coroutines.runBlocking
 import org.jetbrains.space.jenkins.config.SpaceAppInstanceStorageImpl
 import org.jetbrains.space.jenkins.config.SpaceConnection
@@ -17,6 +19,7 @@ import space.jetbrains.api.runtime.helpers.processPayload
 import space.jetbrains.api.runtime.ktorClientForSpace
 import space.jetbrains.api.runtime.resources.applications
 import space.jetbrains.api.runtime.types.*
+import java.io.InputStream
 import java.nio.charset.StandardCharsets
 import java.util.logging.Logger
 import javax.servlet.http.HttpServletResponse
@@ -35,79 +38,95 @@ fun SpacePayloadHandler.doProcess(request: StaplerRequest, response: StaplerResp
         return
     }
 
-    val requestAdapter = RequestAdapterImpl(request, response)
+    val body = request.readBoundedBody()
+        ?: run {
+            LOGGER.warning("Payload exceeds the maximum size of $maxPayloadSize bytes, rejecting the request")
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Payload exceeds the maximum size of $maxPayloadSize bytes")
+            return
+        }
+
+    val requestAdapter = RequestAdapterImpl(request, response, body)
+    val spaceAppInstanceStorage = SpaceAppInstanceStorageImpl()
+    var isPayloadVerified = false
     runBlocking {
         // wrap request processing with the Space SDK function call that handles some common logic
-        // like verifying request signature and deserializing the payload for us
-        val spaceAppInstanceStorage = SpaceAppInstanceStorageImpl()
+        // like verifying request signature and deserializing the payload for us,
+        // then process the payload within the lane for its kind so that a flood of webhooks doesn't delay safe merge commands
         Space.processPayload(requestAdapter, ktorClientForSpace, spaceAppInstanceStorage) { payload ->
-            when (payload) {
-                is InitPayload -> {
-                    if (spaceAppInstanceStorage.loadAppInstance(payload.clientId) == null) {
-                        // installation was rejected due to invalid state key
-                        return@processPayload SpaceHttpResponse.RespondWithCode(400)
-                    }
+            isPayloadVerified = true
+            val lane = PayloadLane.of(payload)
+            lane.process {
+                when (payload) {
+                    is InitPayload -> {
+                        if (spaceAppInstanceStorage.loadAppInstance(payload.clientId) == null) {
+                            // installation was rejected due to invalid state key
+                            return@processPayload SpaceHttpResponse.RespondWithCode(400)
+                        }
 
-                    clientWithClientCredentials().apply {
-                        applications.authorizations.authorizedRights.requestRights(
-                            ApplicationIdentifier.Me,
-                            GlobalPermissionContextIdentifier,
-                            SpaceConnection.requiredPermissions.keys.toList()
-                        )
-                        applications.setUiExtensions(
-                            GlobalPermissionContextIdentifier,
-                            listOf(
-                                GettingStartedUiExtensionIn(
-                                    gettingStartedUrl = "${Jenkins.get().rootUrl}/manage/spacecode/appInstalled",
-                                    gettingStartedTitle = "Back to Jenkins",
-                                    openInNewTab = false
+                        clientWithClientCredentials().apply {
+                            applications.authorizations.authorizedRights.requestRights(
+                                ApplicationIdentifier.Me,
+                                GlobalPermissionContextIdentifier,
+                                SpaceConnection.requiredPermissions.keys.toList()
+                            )
+                            applications.setUiExtensions(
+                                GlobalPermissionContextIdentifier,
+                                listOf(
+                                    GettingStartedUiExtensionIn(
+                                        gettingStartedUrl = "${Jenkins.get().rootUrl}/manage/spacecode/appInstalled",
+                                        gettingStartedTitle = "Back to Jenkins",
+                                        openInNewTab = false
+                                    )
                                 )
                             )
-                        )
-
-                        val app = applications.getApplication(ApplicationIdentifier.Me);
-                        applications.webhooks.createWebhook(
-                            ApplicationIdentifier.Me,
-                            SpacePermissionsApproveListener.SpaceWebhookName,
-                            "Auto-generated webhook to listen for application's rights authorization",
-                            subscriptions = listOf(
-                                SubscriptionDefinition(
-                                    "Parent app authorizations",
-                                    CustomGenericSubscriptionIn(
-                                        "Application",
-                                        listOf(ApplicationsSubscriptionFilterIn(app.id)),
-                                        listOf("Application.Authorized")
+
+                            val app = applications.getApplication(ApplicationIdentifier.Me);
+                            applications.webhooks.createWebhook(
+                                ApplicationIdentifier.Me,
+                                SpacePermissionsApproveListener.SpaceWebhookName,
+                                "Auto-generated webhook to listen for application's rights authorization",
+                                subscriptions = listOf(
+                                    SubscriptionDefinition(
+                                        "Parent app authorizations",
+                                        CustomGenericSubscriptionIn(
+                                            "Application",
+                                            listOf(ApplicationsSubscriptionFilterIn(app.id)),
+                                            listOf("Application.Authorized")
+                                        )
                                     )
                                 )
                             )
-                        )
+                        }
+                        SpaceHttpResponse.RespondWithOk
                     }
-                    SpaceHttpResponse.RespondWithOk
-                }
 
-                is ApplicationUninstalledPayload ->
-                    SpaceHttpResponse.RespondWithOk
+                    is ApplicationUninstalledPayload ->
+                        SpaceHttpResponse.RespondWithOk
 
-                is WebhookRequestPayload ->
-                    processWebhookCallback(payload)
+                    is WebhookRequestPayload ->
+                        processWebhookCallback(payload)
 
-                is SafeMergeCommandPayload ->
-                    ACL.as2(ACL.SYSTEM2).use {
-                        when (val command = payload.command) {
-                            is SafeMergeCommand.Start ->
-                                startSafeMerge(payload.clientId, command, requestAdapter)
+                    is SafeMergeCommandPayload ->
+                        ACL.as2(ACL.SYSTEM2).use {
+                            when (val command = payload.command) {
+                                is SafeMergeCommand.Start ->
+                                    startSafeMerge(payload.clientId, command, requestAdapter)
 
-                            is SafeMergeCommand.Stop ->
-                                stopSafeMerge(payload.clientId, command, requestAdapter)
+                                is SafeMergeCommand.Stop ->
+                                    stopSafeMerge(payload.clientId, command, requestAdapter)
 
-                            is SafeMergeCommand.FetchStatus ->
-                                fetchSafeMergeStatus(payload.clientId, command, requestAdapter)
+                                is SafeMergeCommand.FetchStatus ->
+                                    fetchSafeMergeStatus(payload.clientId, command, requestAdapter)
+                            }
                         }
+                    else -> {
+                        LOGGER.warning("Got payload of type " + payload.javaClass.getSimpleName())
+                        return@processPayload SpaceHttpResponse.RespondWithCode(HttpStatusCode.BadRequest)
                     }
-                else -> {
-                    LOGGER.warning("Got payload of type " + payload.javaClass.getSimpleName())
-                    return@processPayload SpaceHttpResponse.RespondWithCode(HttpStatusCode.BadRequest)
                 }
+            } ?: run {
+                LOGGER.warning("Rejecting ${payload.javaClass.simpleName} because ${lane.name} lane is busy")
+                SpaceHttpResponse.RespondWithCode(HttpStatusCode.ServiceUnavailable)
             }
         }
     }
@@ -115,31 +134,126 @@ fun SpacePayloadHandler.doProcess(request: StaplerRequest, response: StaplerResp
     if (!requestAdapter.responded) {
         LOGGER.warning("Webhook processing resulted in no response, responding OK by default")
         response.status = HttpStatusCode.OK.value
+    } else if (!isPayloadVerified && spaceAppInstanceStorage.isAppInstanceFound && requestAdapter.statusCode == HttpStatusCode.Unauthorized.value) {
+        // Space SDK has found the app instance for the request but rejected it without passing the payload to the handler,
+        // so the signature verification has failed, possibly because SpaceCode has rotated its keys;
+        // 401 responses of the handler itself (for example, for unknown project connections) have nothing to do with the keys
+        SpacePublicKeysCache.onVerificationFailed()
+    }
+}
+
+/**
+ * Reads the request body as UTF-8 text, or returns null if it exceeds the configured maximum payload size.
+ *
+ * The request is rejected without reading the body at all if the declared content length is already over the limit.
+ * Otherwise the body is read directly into a per-thread buffer that is reused between requests,
+ * so that the only allocation for a typical payload is the resulting string itself.
+ */
+private fun StaplerRequest.readBoundedBody(): String? {
+    val maxSize = maxPayloadSize
+    val contentLength = contentLengthLong
+    if (contentLength > maxSize)
+        return null
+
+    return if (contentLength >= 0)
+        inputStream.readBodyOfLength(contentLength.toInt())
+    else
+        inputStream.readChunkedBody(maxSize)
+}
+
+/**
+ * Reads exactly [contentLength] bytes declared by the request, rejecting the body if the stream does not end right after them.
+ */
+private fun InputStream.readBodyOfLength(contentLength: Int): String? {
+    val buffer = pooledBuffer.get().takeIf { it.size >= contentLength } ?: ByteArray(contentLength)
+    val length = readNBytes(buffer, 0, contentLength)
+    if (length == contentLength && read() != -1)
+        return null
+
+    return String(buffer, 0, length, StandardCharsets.UTF_8)
+}
+
+/**
+ * Reads the body of unknown length (chunked transfer encoding) up to [maxSize] bytes.
+ * The body is read into the per-thread buffer first, and whatever does not fit it is read into additional segments of the same size,
+ * which are joined only once at the end, so that no byte is copied more than once.
+ */
+private fun InputStream.readChunkedBody(maxSize: Int): String? {
+    val pooled = pooledBuffer.get()
+    val segments = ArrayList<ByteArray>()
+    var segment = pooled
+    var length = 0
+    while (true) {
+        segments.add(segment)
+        val toRead = minOf(segment.size, maxSize - length)
+        val read = readNBytes(segment, 0, toRead)
+        length += read
+        if (read < toRead)
+            break
+
+        if (length == maxSize) {
+            // the body has reached the maximum allowed size, it is acceptable only if the stream ends right here
+            if (read() != -1) return null
+            break
+        }
+        segment = ByteArray(minOf(pooled.size, maxSize - length))
     }
+
+    if (segments.size == 1)
+        return String(pooled, 0, length, StandardCharsets.UTF_8)
+
+    val body = ByteArray(length)
+    var offset = 0
+    for (filled in segments) {
+        val count = minOf(filled.size, length - offset)
+        System.arraycopy(filled, 0, body, offset, count)
+        offset += count
+    }
+    return String(body, StandardCharsets.UTF_8)
 }
 
+/**
+ * Maximum size of the request payload from SpaceCode in bytes.
+ * Can be configured with the `org.jetbrains.space.jenkins.SpacePayloadHandler.maxPayloadSize` system property.
+ */
+private val maxPayloadSize = SystemProperties.getInteger(SpacePayloadHandler::class.java.name + ".maxPayloadSize", 4 * 1024 * 1024)
+
+/**
+ * Buffers for reading request payloads, reused by the request handling threads.
+ * Only buffers of a limited size are pooled, larger payloads are read into a temporary buffer.
+ */
+private val pooledBuffer = ThreadLocal.withInitial { ByteArray(64 * 1024) }
+
 /**
  * Space SDK requires consuming code to provide an implementation for the [RequestAdapterImpl] interface
  * that abstracts the specific HTTP client used by the consumer code away from the SDK.
  *
  * This implementation allows Space SDK to interact with the [Stapler] library to deal with the HTTP request and response.
+ * The request body is read and size-checked in advance and passed to the adapter as a string.
  */
 @OptIn(ExperimentalSpaceSdkApi::class)
-class RequestAdapterImpl(private val request: StaplerRequest, private val response: StaplerResponse) : space.jetbrains.api.runtime.helpers.RequestAdapter {
+class RequestAdapterImpl(
+    private val request: StaplerRequest,
+    private val response: StaplerResponse,
+    private val body: String
+) : space.jetbrains.api.runtime.helpers.RequestAdapter {
     var responded = false
         private set
 
+    var statusCode: Int? = null
+        private set
+
     override fun getHeader(headerName: String): String? {
         return request.getHeader(headerName)
     }
 
     override suspend fun receiveText(): String {
-        @Suppress("BlockingMethodInNonBlockingContext")
-        return request.inputStream.readAllBytes().toString(StandardCharsets.UTF_8)
+        return body
     }
 
     override suspend fun respond(httpStatusCode: Int, body: String) {
         response.setStatus(httpStatusCode)
+        statusCode = httpStatusCode
         response.characterEncoding = Charsets.UTF_8.name
         response.writer.print(body)
         responded = true
@@ -150,9 +264,10 @@ class RequestAdapterImpl(private val request: StaplerRequest, private val respon
  * Space SDK implementation for handling webhook callbacks makes a call to Space API
  * to fetch public key in order to verify the incoming request signature,
  * therefore it needs an instance of HTTP client to access Space API.
+ * Public keys are served from [SpacePublicKeysCache] by this client whenever possible.
  *
  * @see <a href="https://www.jetbrains.com/help/space/verify-space-in-application.html#verifying-requests-using-a-public-key">Verifying requests from SpaceCode using a public key</a>
  */
-private val ktorClientForSpace = ktorClientForSpace();
+private val ktorClientForSpace = ktorClientForSpace(SpacePublicKeysCachingEngine(Java.create()))
 
 private val LOGGER = Logger.getLogger(SpacePayloadHandler::class.java.name)
@@ -0,0 +1,144 @@
+package org.jetbrains.space.jenkins
+
+import io.ktor.client.engine.*
+import io.ktor.client.request.*
+import io.ktor.http.*
+import io.ktor.util.*
+import io.ktor.util.date.*
+import io.ktor.utils.io.*
+import kotlinx.coroutines.*
+import org.jetbrains.space.jenkins.config.SpaceConnection
+import org.jetbrains.space.jenkins.config.getApiClient
+import org.jetbrains.space.jenkins.config.getConnectionsSnapshot
+import space.jetbrains.api.runtime.resources.applications
+import space.jetbrains.api.runtime.types.ApplicationIdentifier
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * Public keys that SpaceCode servers sign their requests to Jenkins with, keyed by SpaceCode server host.
+ *
+ * Space SDK verifies the signature of every incoming request by fetching the public keys from SpaceCode.
+ * To keep webhook processing free from outbound calls, the keys are fetched in advance when a SpaceCode connection is established
+ * and refreshed in the background periodically and whenever a request fails verification, which is what happens after keys rotation.
+ * Requests for the public keys made by Space SDK are then served from this cache by [SpacePublicKeysCachingEngine].
+ */
+object SpacePublicKeysCache {
+
+    private val keysByServer = ConcurrentHashMap<String, String>()
+
+    private val lastRefreshOnFailure = AtomicLong()
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    /**
+     * Returns the cached public keys (in JWKS format) for the given SpaceCode server host.
+     */
+    fun getKeys(serverHost: String): String? =
+        keysByServer[serverHost]
+
+    /**
+     * Fetches public keys in the background for the configured SpaceCode servers that have no keys cached yet.
+     */
+    fun prefetchMissing() {
+        val missing = getConnectionsSnapshot().connections.filter { connection ->
+            connection.clientId != null && getServerHost(connection.baseUrl).let { it != null && !keysByServer.containsKey(it) }
+        }
+        if (missing.isNotEmpty()) {
+            scope.launch { missing.forEach { refresh(it) } }
+        }
+    }
+
+    /**
+     * Refetches public keys for all configured SpaceCode servers. Blocks until all the keys are fetched.
+     */
+    fun refreshAll() {
+        val snapshot = getConnectionsSnapshot()
+        runBlocking {
+            snapshot.connections
+                .filter { it.clientId != null }
+                .distinctBy { getServerHost(it.baseUrl) }
+                .forEach { refresh(it) }
+        }
+        // forget the keys for the SpaceCode servers that are not connected anymore
+        val connectedHosts = snapshot.connections.mapNotNull { getServerHost(it.baseUrl) }.toSet()
+        keysByServer.keys.retainAll(connectedHosts)
+    }
+
+    /**
+     * Schedules background refresh of all the public keys after a request from SpaceCode has failed signature verification,
+     * which might be caused by the keys rotation on the SpaceCode side.
+     * Refresh happens at most once a minute so that a flood of invalid requests doesn't turn into a flood of outbound calls.
+     */
+    fun onVerificationFailed() {
+        if (keysByServer.isEmpty())
+            return
+
+        val now = System.currentTimeMillis()
+        val last = lastRefreshOnFailure.get()
+        if (now - last > REFRESH_ON_FAILURE_INTERVAL_MILLIS && lastRefreshOnFailure.compareAndSet(last, now)) {
+            scope.launch { refreshAll() }
+        }
+    }
+
+    private suspend fun refresh(connection: SpaceConnection) {
+        val serverHost = getServerHost(connection.baseUrl) ?: return
+        try {
+            val keys = connection.getApiClient().use { it.applications.getPublicKeys(ApplicationIdentifier.Me) }
+            keysByServer[serverHost] = keys
+        } catch (ex: Throwable) {
+            LOGGER.log(Level.WARNING, "Failed to fetch public keys from SpaceCode instance at ${connection.baseUrl}", ex)
+        }
+    }
+
+    private const val REFRESH_ON_FAILURE_INTERVAL_MILLIS = 60 * 1000L
+}
+
+/**
+ * Ktor HTTP client engine for the client passed to Space SDK when processing requests from SpaceCode.
+ * Serves the requests for SpaceCode public keys from [SpacePublicKeysCache] when the keys for the server are cached,
+ * and passes all other requests to the underlying engine.
+ */
+@OptIn(InternalAPI::class)
+class SpacePublicKeysCachingEngine(private val delegate: HttpClientEngine) : HttpClientEngineBase("space-public-keys-cache") {
+
+    override val config: HttpClientEngineConfig
+        get() = delegate.config
+
+    override val supportedCapabilities: Set<HttpClientEngineCapability<*>>
+        get() = delegate.supportedCapabilities
+
+    override suspend fun execute(data: HttpRequestData): HttpResponseData {
+        if (data.method == HttpMethod.Get && data.url.encodedPath.endsWith(PUBLIC_KEYS_PATH_SUFFIX)) {
+            SpacePublicKeysCache.getKeys(data.url.hostWithPort)?.let { keys ->
+                return HttpResponseData(
+                    statusCode = HttpStatusCode.OK,
+                    requestTime = GMTDate(),
+                    headers = headersOf(HttpHeaders.ContentType, ContentType.Application.Json.toString()),
+                    version = HttpProtocolVersion.HTTP_1_1,
+                    body = ByteReadChannel(keys),
+                    callContext = callContext()
+                )
+            }
+        }
+        return delegate.execute(data)
+    }
+
+    override fun close() {
+        super.close()
+        delegate.close()
+    }
+}
+
+private fun getServerHost(baseUrl: String) =
+    try {
+        Url(baseUrl).hostWithPort
+    } catch (ex: URLParserException) {
+        null
+    }
+
+private const val PUBLIC_KEYS_PATH_SUFFIX = "/public-keys"
+
+private val LOGGER = Logger.getLogger(SpacePublicKeysCache::class.java.name)
@@ -0,0 +1,35 @@
+package org.jetbrains.space.jenkins;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically refetches the public keys of the connected SpaceCode instances,
+ * so that the requests from SpaceCode can be verified without waiting for the keys to be fetched.
+ * Also fills the cache shortly after Jenkins startup.
+ */
+@Extension
+public class SpacePublicKeysRefresh extends AsyncPeriodicWork {
+
+    public SpacePublicKeysRefresh() {
+        super("SpaceCode public keys refresh");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.HOURS.toMillis(1);
+    }
+
+    @Override
+    public long getInitialDelay() {
+        return TimeUnit.SECONDS.toMillis(10);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        SpacePublicKeysCache.INSTANCE.refreshAll();
+    }
+}
@@ -21,10 +21,21 @@ import java.util.logging.Logger
 @OptIn(ExperimentalSpaceSdkApi::class)
 class SpaceAppInstanceStorageImpl : SpaceAppInstanceStorage {
 
-    override suspend fun loadAppInstance(clientId: String): SpaceAppInstance? {
-        val configuration = ExtensionList.lookupSingleton(SpacePluginConfiguration::class.java)
+    /**
+     * Whether an app instance has been found by [loadAppInstance] with this storage instance.
+     * Storage is created for every request from SpaceCode, so this tells whether the request came from a known SpaceCode application.
+     */
+    @Volatile
+    var isAppInstanceFound = false
+        private set
+
+    override suspend fun loadAppInstance(clientId: String): SpaceAppInstance? =
+        findAppInstance(clientId)?.also { isAppInstanceFound = true }
+
+    private fun findAppInstance(clientId: String): SpaceAppInstance? {
+        val snapshot = getConnectionsSnapshot()
         // Space app could represent a global Jenkins instance to SpaceCode organization connection
-        return configuration.connections.firstOrNull { it.clientId == clientId }
+        return snapshot.getConnectionByClientId(clientId)
             ?.let {
                 SpaceAppInstance(
                     clientId = it.clientId
@@ -34,16 +45,9 @@ class SpaceAppInstanceStorageImpl : SpaceAppInstanceStorage {
                 )
             }
             // or a Jenkins job to SpaceCode project connection
-            ?: configuration.connections.firstNotNullOfOrNull { connection ->
-                val projectConnection =
-                    connection.projectConnectionsByJob?.values
-                        ?.firstOrNull { it.clientId == clientId }
-                        // or one of the branch sources (SpaceCode project+repo) in a Jenkins multibranch project
-                        ?: connection.projectConnectionsByMultibranchFolder?.values?.flatten()
-                            ?.firstOrNull { it.clientId == clientId }
-                projectConnection?.let {
-                    SpaceAppInstance(it.clientId, it.clientSecret.plainText, connection.baseUrl)
-                }
+            // or one of the branch sources (SpaceCode project+repo) in a Jenkins multibranch project
+            ?: snapshot.getProjectConnectionByClientId(clientId)?.let {
+                SpaceAppInstance(it.projectConnection.clientId, it.projectConnection.clientSecret.plainText, it.spaceUrl)
             }
             ?: run {
                 LOGGER.info("Loading SpaceCode app instance for client id = $clientId not found")
@@ -65,16 +69,18 @@ class SpaceAppInstanceStorageImpl : SpaceAppInstanceStorage {
 
         ACL.as2(ACL.SYSTEM2).use {
             val configuration = ExtensionList.lookupSingleton(SpacePluginConfiguration::class.java)
-            val existing = configuration.connections.firstOrNull { it.clientId == appInstance.clientId }
+            val existing = configuration.snapshot.getConnectionByClientId(appInstance.clientId)
             configuration.addConnection(
                 SpaceConnection(
                     id = Url(appInstance.spaceServer.serverUrl).host,
                     baseUrl = appInstance.spaceServer.serverUrl,
                     clientId = appInstance.clientId,
                     clientSecret = Secret.fromString(appInstance.clientSecret),
-                    projectConnectionsByJob = existing?.projectConnectionsByJob
+                    // the existing connection is a copy owned by the snapshot, so its collections are copied once again before being modified
+                    projectConnectionsByJob = existing?.projectConnectionsByJob?.let { HashMap(it) }
                         ?: HashMap<String, SpaceProjectConnection>(),
                     projectConnectionsByMultibranchFolder = existing?.projectConnectionsByMultibranchFolder
+                        ?.let { byFolder -> HashMap(byFolder.mapValues { ArrayList(it.value) }) }
                         ?: HashMap<String, ArrayList<SpaceProjectConnection>>()
                 )
             )
@@ -46,28 +46,25 @@ class SpaceConnection(
     /**
      * Called when a job, workflow or multibranch project is renamed in Jenkins.
      * Reflects the name change in the hashmaps with child connections.
+     *
+     * Only changes the in-memory state and is meant to be called within [SpacePluginConfiguration.modifyConnections].
+     * @return Action renaming the SpaceCode applications of the child connections,
+     *  to be run after the modification, outside the configuration lock
      */
-    fun onItemRenamed(oldFullName: String, newFullName: String) {
-        projectConnectionsByJob?.get(oldFullName)?.let { projectConnection ->
-            projectConnectionsByJob.remove(oldFullName)
-            projectConnectionsByJob.put(newFullName, projectConnection)
-
-            runBlocking {
-                projectConnection.getApiClient(baseUrl).use { spaceClient ->
-                    spaceClient.applications.updateApplication(
-                        ApplicationIdentifier.Me,
-                        name = SpaceProjectConnection.spaceAppName(projectConnection.projectKey, newFullName)
-                    )
-                }
-            }
+    fun onItemRenamed(oldFullName: String, newFullName: String): Runnable {
+        val renamed = mutableListOf<SpaceProjectConnection>()
+        projectConnectionsByJob?.remove(oldFullName)?.let { projectConnection ->
+            projectConnectionsByJob[newFullName] = projectConnection
+            renamed.add(projectConnection)
+        }
+        projectConnectionsByMultibranchFolder?.remove(oldFullName)?.let { entry ->
+            projectConnectionsByMultibranchFolder[newFullName] = entry
+            renamed.addAll(entry)
         }
 
-        projectConnectionsByMultibranchFolder?.get(oldFullName)?.let { entry ->
-            projectConnectionsByMultibranchFolder.remove(oldFullName)
-            projectConnectionsByMultibranchFolder.put(newFullName, entry)
-
+        return Runnable {
             runBlocking {
-                entry.forEach { projectConnection ->
+                renamed.forEach { projectConnection ->
                     projectConnection.getApiClient(baseUrl).use { spaceClient ->
                         spaceClient.applications.updateApplication(
                             ApplicationIdentifier.Me,
@@ -81,18 +78,18 @@ class SpaceConnection(
 
     /**
      * Called when a job, workflow or multibranch project is removed.
-     * Cleans up the child project-level connections, ssh credentials for this job/project
-     * and requests SpaceCode to uninstall the corresponding applications.
+     * Removes the child project-level connections for this job/project.
+     *
+     * Only changes the in-memory state and is meant to be called within [SpacePluginConfiguration.modifyConnections].
+     * @return Action cleaning up ssh credentials of the removed child connections and requesting SpaceCode to uninstall the corresponding applications,
+     *  to be run after the modification, outside the configuration lock
      */
-    fun onItemDeleted(fullName: String) {
-        projectConnectionsByJob?.get(fullName)?.let { projectConnection ->
-            projectConnectionsByJob.remove(fullName)
-            projectConnection.deleteProjectApplication(this)
-            projectConnection.deleteSshKeyCredentials()
-        }
-        projectConnectionsByMultibranchFolder?.get(fullName)?.let { entry ->
-            projectConnectionsByMultibranchFolder.remove(fullName)
-            entry.forEach { projectConnection ->
+    fun onItemDeleted(fullName: String): Runnable {
+        val removed = listOfNotNull(projectConnectionsByJob?.remove(fullName)) +
+                projectConnectionsByMultibranchFolder?.remove(fullName).orEmpty()
+
+        return Runnable {
+            removed.forEach { projectConnection ->
                 projectConnection.deleteProjectApplication(this)
                 projectConnection.deleteSshKeyCredentials()
             }
@@ -101,24 +98,35 @@ class SpaceConnection(
 
     /**
      * Called when SpaceCode notifies Jenkins about the uninstall of an application that supports the integration.
-     * Cleans up the corresponding connection entries on Jenkins side and removes unused SSH credentials
+     * Cleans up the corresponding connection entries on Jenkins side.
+     *
+     * Only changes the in-memory state and is meant to be called within [SpacePluginConfiguration.modifyConnections].
+     * @return Action detaching Jenkins items from the uninstalled application and removing unused SSH credentials,
+     *  to be run after the modification, outside the configuration lock
      */
-    fun onSpaceAppUninstalled(clientId: String) {
-        projectConnectionsByJob?.entries?.firstOrNull { it.value.clientId == clientId }?.let { entry ->
-            projectConnectionsByJob.remove(entry.key)
-            ACL.as2(ACL.SYSTEM2).use {
-                (Jenkins.get().getItem(entry.key) as? Job<*, *>)?.let { job ->
-                    job.removeProperty(SpaceProjectConnectionJobProperty::class.java)
-                    job.save()
+    fun onSpaceAppUninstalled(clientId: String): Runnable {
+        val jobConnection = projectConnectionsByJob?.entries?.firstOrNull { it.value.clientId == clientId }
+            ?.let { it.key to it.value }
+            ?.also { projectConnectionsByJob.remove(it.first) }
+
+        val multiBranchProjectConnections = projectConnectionsByMultibranchFolder?.entries
+            ?.mapNotNull { entry -> entry.value.firstOrNull { it.clientId == clientId }?.let { entry.key to it } }
+            .orEmpty()
+
+        return Runnable {
+            jobConnection?.let { (jobFullName, projectConnection) ->
+                ACL.as2(ACL.SYSTEM2).use {
+                    (Jenkins.get().getItem(jobFullName) as? Job<*, *>)?.let { job ->
+                        job.removeProperty(SpaceProjectConnectionJobProperty::class.java)
+                        job.save()
+                    }
+                    projectConnection.deleteSshKeyCredentials()
                 }
-                entry.value.deleteSshKeyCredentials()
             }
-        }
 
-        projectConnectionsByMultibranchFolder?.entries?.forEach { entry ->
-            entry.value.firstOrNull { it.clientId == clientId }?.let { projectConnection ->
+            multiBranchProjectConnections.forEach { (projectFullName, projectConnection) ->
                 ACL.as2(ACL.SYSTEM2).use {
-                    (Jenkins.get().getItem(entry.key) as? MultiBranchProject<*, *>)?.let { project ->
+                    (Jenkins.get().getItem(projectFullName) as? MultiBranchProject<*, *>)?.let { project ->
                         project.setSourcesList(project.getSources().filter {
                             val spaceScmSource = (it.source as? SpaceSCMSource) ?: return@filter true
                             projectConnection.clientId != clientId || projectConnection.projectKey != spaceScmSource.projectKey
@@ -146,7 +154,9 @@ fun SpaceConnection.getApiClient(): SpaceClient {
 }
 
 /**
- * Uninstalls the org-level SpaceCode application and cleans up all the child project-level connections and SSH credentials
+ * Uninstalls the org-level SpaceCode application and cleans up all the child project-level connections and SSH credentials.
+ * Meant to be called with the connection taken from [SpaceConnectionsSnapshot] after it has been removed from the configuration,
+ * so that the child connections are iterated on the snapshot copy.
  */
 fun SpaceConnection.deleteApplication() {
     runBlocking {
@@ -0,0 +1,126 @@
+package org.jetbrains.space.jenkins.config
+
+import java.util.Collections
+
+/**
+ * Immutable view of the SpaceCode connections configured in Jenkins, with the indexes for the most frequent lookups prebuilt.
+ * <br />
+ * SpaceCode connections are modified rarely (when connecting or removing jobs and projects) but read on every incoming webhook,
+ * build checkout or completion. Instead of guarding the nested collections of [SpaceConnection] with locks,
+ * [SpacePluginConfiguration] publishes a new snapshot after every modification,
+ * so that readers always observe a consistent state without any synchronization.
+ * The snapshot is built from deep copies of the connections with their nested collections of child connections,
+ * so that readers can iterate the nested collections of the [SpaceConnection] instances it exposes
+ * while the live ones keep being modified under the configuration lock. The copies are owned by the snapshot and are never modified.
+ */
+class SpaceConnectionsSnapshot(connections: List<SpaceConnection>) {
+
+    /**
+     * All org-level SpaceCode connections in the order they are configured in Jenkins.
+     */
+    val connections: List<SpaceConnection> = Collections.unmodifiableList(connections.map { it.deepCopy() })
+
+    private val connectionsById = HashMap<String, SpaceConnection>()
+
+    private val connectionsByClientId = HashMap<String, SpaceConnection>()
+
+    private val jobConnections = HashMap<JobKey, SpaceProjectConnection>()
+
+    private val multiBranchProjectConnections = HashMap<MultiBranchProjectKey, SpaceProjectConnection>()
+
+    private val projectConnectionsByClientId = HashMap<String, SpaceProjectConnectionEntry>()
+
+    init {
+        this.connections.forEach { connection ->
+            connectionsById.putIfAbsent(connection.id, connection)
+            connection.clientId?.let { connectionsByClientId.putIfAbsent(it, connection) }
+
+            connection.projectConnectionsByJob?.forEach { (jobFullName, projectConnection) ->
+                jobConnections[JobKey(connection.id, jobFullName)] = projectConnection
+                projectConnectionsByClientId.putIfAbsent(
+                    projectConnection.clientId,
+                    SpaceProjectConnectionEntry(connection, projectConnection, jobFullName, isMultiBranchProject = false)
+                )
+            }
+
+            connection.projectConnectionsByMultibranchFolder?.forEach { (projectFullName, projectConnections) ->
+                projectConnections.forEach { projectConnection ->
+                    multiBranchProjectConnections.putIfAbsent(
+                        MultiBranchProjectKey(connection.id, projectFullName, projectConnection.projectKey),
+                        projectConnection
+                    )
+                    projectConnectionsByClientId.putIfAbsent(
+                        projectConnection.clientId,
+                        SpaceProjectConnectionEntry(connection, projectConnection, projectFullName, isMultiBranchProject = true)
+                    )
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns org-level SpaceCode connection by its identifier.
+     */
+    fun getConnection(id: String): SpaceConnection? =
+        connectionsById[id]
+
+    /**
+     * Returns org-level SpaceCode connection by the client id of its SpaceCode application.
+     */
+    fun getConnectionByClientId(clientId: String): SpaceConnection? =
+        connectionsByClientId[clientId]
+
+    /**
+     * Returns the project-level connection for a Jenkins job or workflow.
+     */
+    fun getJobConnection(spaceConnectionId: String, jobFullName: String): SpaceProjectConnection? =
+        jobConnections[JobKey(spaceConnectionId, jobFullName)]
+
+    /**
+     * Returns the project-level connection for a branch source of a Jenkins multibranch project.
+     */
+    fun getMultiBranchProjectConnection(spaceConnectionId: String, projectFullName: String, projectKey: String): SpaceProjectConnection? =
+        multiBranchProjectConnections[MultiBranchProjectKey(spaceConnectionId, projectFullName, projectKey)]
+
+    /**
+     * Returns the project-level connection (either for a job or for a multibranch project) by the client id of its SpaceCode application.
+     */
+    fun getProjectConnectionByClientId(clientId: String): SpaceProjectConnectionEntry? =
+        projectConnectionsByClientId[clientId]
+
+    private data class JobKey(val spaceConnectionId: String, val jobFullName: String)
+
+    private data class MultiBranchProjectKey(val spaceConnectionId: String, val projectFullName: String, val projectKey: String)
+}
+
+/**
+ * Copies the org-level connection together with its nested collections of child connections.
+ * Child connections themselves are immutable and are shared with the copy.
+ */
+private fun SpaceConnection.deepCopy() =
+    SpaceConnection(
+        id = id,
+        baseUrl = baseUrl,
+        clientId = clientId,
+        clientSecret = clientSecret,
+        projectConnectionsByJob = projectConnectionsByJob?.let { java.util.HashMap(it) },
+        projectConnectionsByMultibranchFolder = projectConnectionsByMultibranchFolder?.let { byFolder ->
+            java.util.HashMap(byFolder.mapValues { java.util.ArrayList(it.value) })
+        }
+    )
+
+/**
+ * Project-level SpaceCode connection together with its parent org-level connection and the Jenkins item it belongs to.
+ *
+ * @property jenkinsItemFullName Full name of the Jenkins job, workflow or multibranch project
+ * @property isMultiBranchProject True if the connection belongs to a branch source of a multibranch project rather than to a job or workflow
+ */
+class SpaceProjectConnectionEntry(
+    val connection: SpaceConnection,
+    val projectConnection: SpaceProjectConnection,
+    val jenkinsItemFullName: String,
+    val isMultiBranchProject: Boolean
+) {
+    val spaceUrl: String
+        get() = connection.baseUrl
+}
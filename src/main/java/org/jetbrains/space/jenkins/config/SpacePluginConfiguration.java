@@ -5,31 +5,83 @@ import hudson.model.Describable;
 import hudson.model.Descriptor;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
  * Piece of Jenkins configuration containing the list of org-level SpaceCode connections.
+ * <br />
+ * Connections are read through an immutable {@link SpaceConnectionsSnapshot} that is replaced after every modification.
+ * The snapshot holds its own copies of the connections, so the connections it returns must never be modified;
+ * modifications are applied to the live connections instead, see {@link #modifyConnection(String, Consumer)}.
+ * All modifications of the connections and their nested collections of child connections are performed while holding the lock on this object
+ * and are followed by publishing a new snapshot, see {@link #modifyConnections(Runnable)}.
+ * Requests to SpaceCode, removal of SSH credentials and saving of Jenkins items that accompany the modifications
+ * are performed after releasing the lock, so that a slow SpaceCode does not block the readers of the configuration.
  */
 @Extension
 public class SpacePluginConfiguration extends Descriptor<SpacePluginConfiguration> implements Describable<SpacePluginConfiguration> {
 
     private List<SpaceConnection> connections;
 
+    private transient volatile SpaceConnectionsSnapshot snapshot;
+
     public SpacePluginConfiguration() {
         super(SpacePluginConfiguration.class);
         load();
         if (connections == null)
             connections = new ArrayList<>();
+        publishSnapshot();
     }
 
     public List<SpaceConnection> getConnections() {
-        return Collections.unmodifiableList(connections);
+        return snapshot.getConnections();
+    }
+
+    /**
+     * Returns the current immutable snapshot of the SpaceCode connections with prebuilt lookup indexes.
+     */
+    public SpaceConnectionsSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Performs the modification of the connections or their nested collections of child connections
+     * and publishes the new snapshot for the readers afterwards.
+     * The modification is performed while holding the lock on the configuration,
+     * so it must only change the in-memory state and must not make any requests to SpaceCode.
+     */
+    public synchronized void modifyConnections(Runnable modification) {
+        try {
+            modification.run();
+        } finally {
+            publishSnapshot();
+        }
+    }
+
+    /**
+     * Performs the modification of the live org-level connection with the given identifier (if it is still configured)
+     * and publishes the new snapshot for the readers afterwards, see {@link #modifyConnections(Runnable)}.
+     */
+    public void modifyConnection(String id, Consumer<SpaceConnection> modification) {
+        modifyConnections(() -> connections.stream().filter(conn -> conn.getId().equals(id)).findFirst().ifPresent(modification));
+    }
+
+    /**
+     * Performs the modification of every live org-level connection
+     * and publishes the new snapshot for the readers afterwards, see {@link #modifyConnections(Runnable)}.
+     */
+    public void modifyEachConnection(Consumer<SpaceConnection> modification) {
+        modifyConnections(() -> connections.forEach(modification));
+    }
+
+    private void publishSnapshot() {
+        snapshot = new SpaceConnectionsSnapshot(connections);
     }
 
-    public void addConnection(SpaceConnection connection) {
+    public synchronized void addConnection(SpaceConnection connection) {
         connections = new ArrayList<>(
                 connections.stream()
                         .filter(c ->
@@ -38,6 +90,7 @@ public class SpacePluginConfiguration extends Descriptor<SpacePluginConfiguratio
                         .collect(Collectors.toList())
         );
         connections.add(connection);
+        publishSnapshot();
         save();
     }
 
@@ -46,8 +99,10 @@ public class SpacePluginConfiguration extends Descriptor<SpacePluginConfiguratio
      * Reflects the name change in the nested collections of child connections.
      */
     public void onItemRenamed(String oldFullName, String newFullName) {
-        connections.forEach(conn -> conn.onItemRenamed(oldFullName, newFullName));
+        List<Runnable> cleanups = new ArrayList<>();
+        modifyConnections(() -> connections.forEach(conn -> cleanups.add(conn.onItemRenamed(oldFullName, newFullName))));
         save();
+        cleanups.forEach(Runnable::run);
     }
 
     /**
@@ -55,14 +110,18 @@ public class SpacePluginConfiguration extends Descriptor<SpacePluginConfiguratio
      * Cleans up unused project-level connections, SSH credentials and SpaceCode applications that the job doesn't use anymore.
      */
     public void onJobUpdated(String jobFullName, SpaceProjectConnectionJobProperty jobProperty) {
-        connections.forEach(parentConnection -> {
+        List<Runnable> cleanups = new ArrayList<>();
+        modifyConnections(() -> connections.forEach(parentConnection -> {
             SpaceProjectConnection projectConnection = parentConnection.getProjectConnectionsByJob().get(jobFullName);
             if (projectConnection != null && !isTheSameProjectConnection(jobProperty, parentConnection, projectConnection)) {
                 parentConnection.getProjectConnectionsByJob().remove(jobFullName);
-                SpaceProjectConnectionKt.deleteProjectApplication(projectConnection, parentConnection);
-                SpaceProjectConnectionKt.deleteSshKeyCredentials(projectConnection);
+                cleanups.add(() -> {
+                    SpaceProjectConnectionKt.deleteProjectApplication(projectConnection, parentConnection);
+                    SpaceProjectConnectionKt.deleteSshKeyCredentials(projectConnection);
+                });
             }
-        });
+        }));
+        cleanups.forEach(Runnable::run);
     }
 
     private static boolean isTheSameProjectConnection(
@@ -81,8 +140,10 @@ public class SpacePluginConfiguration extends Descriptor<SpacePluginConfiguratio
      * and requests SpaceCode to uninstall the corresponding applications.
      */
     public void onItemDeleted(String fullName) {
-        connections.forEach(conn -> conn.onItemDeleted(fullName));
+        List<Runnable> cleanups = new ArrayList<>();
+        modifyConnections(() -> connections.forEach(conn -> cleanups.add(conn.onItemDeleted(fullName))));
         save();
+        cleanups.forEach(Runnable::run);
     }
 
     /**
@@ -92,13 +153,15 @@ public class SpacePluginConfiguration extends Descriptor<SpacePluginConfiguratio
      * @return true if the connection was successfully removed, false if it hasn't been found by id.
      */
     public boolean removeConnectionById(String id) {
-        SpaceConnection connection = connections.stream().filter((conn) -> conn.getId().equals(id)).findFirst().orElse(null);
+        SpaceConnection connection = snapshot.getConnection(id);
         if (connection == null)
             return false;
 
-        SpaceConnectionKt.deleteApplication(connection);
-        this.connections = connections.stream().filter((conn) -> conn != connection).collect(Collectors.toList());
+        modifyConnections(() ->
+                this.connections = connections.stream().filter((conn) -> !conn.getId().equals(id)).collect(Collectors.toList())
+        );
         save();
+        SpaceConnectionKt.deleteApplication(connection);
         return true;
     }
 
@@ -107,11 +170,15 @@ public class SpacePluginConfiguration extends Descriptor<SpacePluginConfiguratio
      * Cleans up the corresponding connection entries on Jenkins side and removes unused SSH credentials
      */
     public void onSpaceAppUninstalled(String clientId) {
-        connections = connections.stream()
-                .filter((conn) -> !conn.getClientId().equals(clientId))
-                .collect(Collectors.toList());
-        connections.forEach(conn -> conn.onSpaceAppUninstalled(clientId));
+        List<Runnable> cleanups = new ArrayList<>();
+        modifyConnections(() -> {
+            connections = connections.stream()
+                    .filter((conn) -> !conn.getClientId().equals(clientId))
+                    .collect(Collectors.toList());
+            connections.forEach(conn -> cleanups.add(conn.onSpaceAppUninstalled(clientId)));
+        });
         save();
+        cleanups.forEach(Runnable::run);
     }
 
     @Override
@@ -3,13 +3,19 @@ package org.jetbrains.space.jenkins.config
 import hudson.ExtensionList
 import jenkins.branch.MultiBranchProject
 import org.jetbrains.space.jenkins.scm.SpaceSCMSource
+import space.jetbrains.api.runtime.SpaceClient
 import java.util.ArrayList
 
 fun getOrgConnection(id: String): SpaceConnection? {
-    return ExtensionList.lookupSingleton<SpacePluginConfiguration>(SpacePluginConfiguration::class.java)
-        .connections.firstOrNull { it.id == id }
+    return getConnectionsSnapshot().getConnection(id)
 }
 
+/**
+ * Returns the current immutable snapshot of the SpaceCode connections configured in Jenkins.
+ */
+fun getConnectionsSnapshot(): SpaceConnectionsSnapshot =
+    ExtensionList.lookupSingleton(SpacePluginConfiguration::class.java).snapshot
+
 /**
  * Retrieves the SpaceCode project connection and SpaceCode URL for a given Jenkins job, workflow or multibranch project.
  * <br />
@@ -29,8 +35,9 @@ fun getProjectConnection(jenkinsItemFullName: String, spaceConnectionId: String,
  * Retrieves the SpaceCode project connection and SpaceCode URL for a given Jenkins job or workflow and org-level connection id.
  */
 private fun getProjectConnectionForJob(jobFullName: String, spaceConnectionId: String): Pair<SpaceProjectConnection, String>? {
-    val rootConnection = getOrgConnection(spaceConnectionId) ?: return null
-    return rootConnection.projectConnectionsByJob?.get(jobFullName)?.let { it to rootConnection.baseUrl }
+    val snapshot = getConnectionsSnapshot()
+    val rootConnection = snapshot.getConnection(spaceConnectionId) ?: return null
+    return snapshot.getJobConnection(spaceConnectionId, jobFullName)?.let { it to rootConnection.baseUrl }
 }
 
 /**
@@ -40,15 +47,27 @@ private fun getProjectConnectionForJob(jobFullName: String, spaceConnectionId: S
  * because a single project can have multiple branch sources pointing to different SpaceCode organizations and projects.
  */
 private fun getProjectConnectionForMultiBranchProject(projectFullName: String, spaceConnectionId: String, projectKey: String): Pair<SpaceProjectConnection, String>? {
-    val rootConnection = getOrgConnection(spaceConnectionId) ?: return null
-    return rootConnection.projectConnectionsByMultibranchFolder?.get(projectFullName)
-        ?.let { it.firstOrNull { it.projectKey == projectKey } }
+    val snapshot = getConnectionsSnapshot()
+    val rootConnection = snapshot.getConnection(spaceConnectionId) ?: return null
+    return snapshot.getMultiBranchProjectConnection(spaceConnectionId, projectFullName, projectKey)
         ?.let { it to rootConnection.baseUrl }
 }
 
-fun getSpaceApiClientForMultiBranchProject(projectFullName: String, spaceConnectionId: String, projectKey: String) =
+/**
+ * Leases the shared SpaceCode API client for a branch source of a multibranch project,
+ * or returns null if the branch source is not connected to SpaceCode.
+ * The caller must close the returned lease, see [leaseSharedApiClient].
+ */
+fun leaseSpaceApiClientForMultiBranchProject(projectFullName: String, spaceConnectionId: String, projectKey: String): SharedApiClientLease? =
     getProjectConnectionForMultiBranchProject(projectFullName, spaceConnectionId, projectKey)
-        ?.let { (projectConnection, spaceUrl) -> projectConnection.getApiClient(spaceUrl) }
+        ?.let { (projectConnection, spaceUrl) -> projectConnection.leaseSharedApiClient(spaceUrl) }
+
+/**
+ * Runs the [block] with the shared SpaceCode API client for a branch source of a multibranch project,
+ * or returns null without running it if the branch source is not connected to SpaceCode.
+ */
+inline fun <T> withSpaceApiClientForMultiBranchProject(projectFullName: String, spaceConnectionId: String, projectKey: String, block: (SpaceClient) -> T): T? =
+    leaseSpaceApiClientForMultiBranchProject(projectFullName, spaceConnectionId, projectKey)?.use { block(it.client) }
 
 /**
  * Called when a multibranch project is updated in Jenkins.
@@ -59,21 +78,21 @@ fun SpacePluginConfiguration.onMultiBranchProjectUpdated(project: MultiBranchPro
     if (scmSources.isEmpty()) {
         onItemDeleted(project.getFullName())
     } else {
-        connections.forEach { parentConn ->
+        val removed = mutableListOf<Pair<SpaceConnection, SpaceProjectConnection>>()
+        modifyEachConnection { parentConn ->
             parentConn.projectConnectionsByMultibranchFolder?.put(
                 project.fullName,
                 parentConn.projectConnectionsByMultibranchFolder.get(project.fullName)
                     ?.filter { projectConn ->
                         scmSources.any { it.spaceConnectionId == parentConn.id && it.projectKey == projectConn.projectKey }
-                            .also {
-                                if (!it) {
-                                    projectConn.deleteProjectApplication(parentConn)
-                                    projectConn.deleteSshKeyCredentials()
-                                }
-                            }
+                            .also { if (!it) removed.add(parentConn to projectConn) }
                     }
                     .let { ArrayList(it.orEmpty()) }
             )
         }
+        removed.forEach { (parentConn, projectConn) ->
+            projectConn.deleteProjectApplication(parentConn)
+            projectConn.deleteSshKeyCredentials()
+        }
     }
-}
\ No newline at end of file
+}
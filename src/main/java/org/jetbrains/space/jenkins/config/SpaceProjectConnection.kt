@@ -20,6 +20,9 @@ import space.jetbrains.api.runtime.resources.projects
 import space.jetbrains.api.runtime.types.ApplicationIdentifier
 import space.jetbrains.api.runtime.types.PermissionIdentifier
 import space.jetbrains.api.runtime.types.ProjectIdentifier
+import java.io.Closeable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
 import java.util.logging.Level
 import java.util.logging.Logger
 
@@ -68,6 +71,114 @@ fun SpaceProjectConnection.getApiClient(spaceUrl: String): SpaceClient {
     return SpaceClient(appInstance, SpaceAuth.ClientCredentials())
 }
 
+/**
+ * Leases the SpaceCode API client for the given project-level connection that is shared between all callers.
+ * Reusing the client saves creating a new HTTP client and obtaining a new access token for every operation.
+ *
+ * The caller must close the lease once it is done with the client and must not close the client itself.
+ * The client is evicted when the project-level connection is removed or reconnected with another secret,
+ * and is closed once all its leases are closed, so that the calls in flight are never interrupted.
+ */
+fun SpaceProjectConnection.leaseSharedApiClient(spaceUrl: String): SharedApiClientLease {
+    val key = SharedApiClientKey(spaceUrl, clientId, Secret.toString(clientSecret))
+    while (true) {
+        var created = false
+        val shared = sharedApiClients.computeIfAbsent(key) {
+            created = true
+            SharedApiClient(getApiClient(spaceUrl))
+        }
+        if (created) {
+            // the connection has been reconnected with another secret, the clients with the previous one are not going to be used anymore
+            evictSharedApiClients { it.clientId == clientId && it != key }
+        }
+        if (shared.acquire())
+            return SharedApiClientLease(shared)
+
+        // the client has been evicted right after the lookup
+        sharedApiClients.remove(key, shared)
+    }
+}
+
+/**
+ * Runs the [block] with the shared SpaceCode API client for the given project-level connection, see [leaseSharedApiClient].
+ */
+inline fun <T> SpaceProjectConnection.withSharedApiClient(spaceUrl: String, block: (SpaceClient) -> T): T =
+    leaseSharedApiClient(spaceUrl).use { block(it.client) }
+
+/**
+ * Evicts the shared SpaceCode API clients for the given project-level connection.
+ * Every client is closed as soon as it is not leased by anyone.
+ */
+fun SpaceProjectConnection.evictSharedApiClients() {
+    evictSharedApiClients { it.clientId == clientId }
+}
+
+private fun evictSharedApiClients(predicate: (SharedApiClientKey) -> Boolean) {
+    sharedApiClients.keys.filter(predicate).forEach { key ->
+        sharedApiClients.remove(key)?.evict()
+    }
+}
+
+/**
+ * Lease of the shared SpaceCode API client, see [leaseSharedApiClient].
+ */
+class SharedApiClientLease internal constructor(private val shared: SharedApiClient) : Closeable {
+
+    private val closed = AtomicBoolean(false)
+
+    val client: SpaceClient
+        get() = shared.client
+
+    override fun close() {
+        if (closed.compareAndSet(false, true))
+            shared.release()
+    }
+}
+
+/**
+ * Shared SpaceCode API client together with the number of its leases.
+ * Evicted client is closed once it has no leases; it cannot be leased anymore after that.
+ */
+internal class SharedApiClient(val client: SpaceClient) {
+    private var leases = 0
+    private var evicted = false
+
+    @Synchronized
+    fun acquire(): Boolean {
+        if (evicted)
+            return false
+        leases++
+        return true
+    }
+
+    @Synchronized
+    fun release() {
+        leases--
+        closeIfUnused()
+    }
+
+    @Synchronized
+    fun evict() {
+        evicted = true
+        closeIfUnused()
+    }
+
+    private fun closeIfUnused() {
+        if (evicted && leases == 0)
+            client.close()
+    }
+}
+
+/**
+ * Identifies the shared client by the credentials it has been created with,
+ * so that reconnecting the project with the same client id but another secret results in a new client.
+ */
+private data class SharedApiClientKey(val spaceUrl: String, val clientId: String, val clientSecret: String) {
+    override fun toString() = "SharedApiClientKey(spaceUrl=$spaceUrl, clientId=$clientId)"
+}
+
+private val sharedApiClients = ConcurrentHashMap<SharedApiClientKey, SharedApiClient>()
+
 /**
  * Fetches git repository clone url from SpaceCode and constructs the config object required for the underlying Jenkins Git plugin
  * to fetch source code from the repository.
@@ -104,6 +215,7 @@ fun SpaceGitCheckoutParams.getGitCloneUrl() =
  * Also removes the corresponding webhook subscription from the org-level application.
  */
 fun SpaceProjectConnection.deleteProjectApplication(parentConnection: SpaceConnection) {
+    evictSharedApiClients()
     runBlocking {
         try {
             getApiClient(parentConnection.baseUrl).use {
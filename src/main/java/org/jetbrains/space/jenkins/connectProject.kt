@@ -75,15 +75,18 @@ private fun Job<*, *>.connectJob(parentConnection: SpaceConnection, spaceProject
         error("This SpaceCode connection has been configured in the previous plugin version and is incompatible with the current version. Please delete and recreate it.")
 
     this.getProperty(SpaceProjectConnectionJobProperty::class.java)?.let { prop ->
-        configuration.connections.firstOrNull { it.id == prop.spaceConnectionId }?.let { oldConnection ->
-            oldConnection.projectConnectionsByJob?.get(jobFullName)?.let { oldProjectConnection ->
+        val snapshot = configuration.snapshot
+        snapshot.getConnection(prop.spaceConnectionId)?.let { oldConnection ->
+            snapshot.getJobConnection(prop.spaceConnectionId, jobFullName)?.let { oldProjectConnection ->
                 if (prop.spaceConnectionId == parentConnection.id && prop.projectKey == spaceProjectKey)
                     return oldProjectConnection
 
                 try {
                     oldProjectConnection.deleteProjectApplication(oldConnection)
                     oldProjectConnection.deleteSshKeyCredentials()
-                    oldConnection.projectConnectionsByJob.remove(jobFullName)
+                    configuration.modifyConnection(oldConnection.id) {
+                        it.projectConnectionsByJob?.remove(jobFullName)
+                    }
                 } catch (ex: Exception) {
                     LOGGER.log(
                         Level.WARNING,
@@ -96,7 +99,9 @@ private fun Job<*, *>.connectJob(parentConnection: SpaceConnection, spaceProject
     }
 
     val projectConnection = configuration.connectProject(parentConnection, spaceProjectKey, jobFullName)
-    parentConnection.projectConnectionsByJob.put(jobFullName, projectConnection)
+    configuration.modifyConnection(parentConnection.id) {
+        it.projectConnectionsByJob?.put(jobFullName, projectConnection)
+    }
     configuration.save()
 
     removeProperty(SpaceProjectConnectionJobProperty::class.java)
@@ -114,14 +119,18 @@ private fun MultiBranchProject<*, *>.connectMultiBranchProject(
     if (parentConnection.projectConnectionsByMultibranchFolder == null)
         error("This SpaceCode connection has been configured in the previous plugin version and is incompatible with the current version. Please delete and recreate it.")
 
-    parentConnection.projectConnectionsByMultibranchFolder.get(projectFullName)?.removeAll { it.projectKey == spaceProjectKey }
-
     val configuration = ExtensionList.lookupSingleton(SpacePluginConfiguration::class.java)
+    configuration.modifyConnection(parentConnection.id) { connection ->
+        connection.projectConnectionsByMultibranchFolder?.get(projectFullName)?.removeAll { it.projectKey == spaceProjectKey }
+    }
+
     val projectConnection = configuration.connectProject(parentConnection, spaceProjectKey, projectFullName)
 
-    parentConnection.projectConnectionsByMultibranchFolder
-        .getOrPut(projectFullName, { ArrayList() })
-        .add(projectConnection)
+    configuration.modifyConnection(parentConnection.id) {
+        it.projectConnectionsByMultibranchFolder
+            ?.getOrPut(projectFullName, { ArrayList() })
+            ?.add(projectConnection)
+    }
     configuration.save()
 
     if (!sources.map { it.source }.filterIsInstance<SpaceSCMSource>().any { it.spaceConnectionId == parentConnection.id && it.projectKey == spaceProjectKey }) {
@@ -0,0 +1,39 @@
+package org.jetbrains.space.jenkins.listeners;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Job;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import jenkins.scm.api.SCMSourceOwner;
+import org.jetbrains.space.jenkins.JobExtensionsKt;
+import org.jetbrains.space.jenkins.SpacePublicKeysCache;
+import org.jetbrains.space.jenkins.config.SpacePluginConfiguration;
+import org.jetbrains.space.jenkins.scm.SpaceSCMSourceIndex;
+import org.jetbrains.space.jenkins.trigger.SpaceWebhookTriggerIndex;
+
+/**
+ * Listens to the saves of jobs, multibranch projects and SpaceCode plugin configuration.
+ * Job properties, multibranch project branch sources and SpaceCode connections might be changed programmatically followed by a save,
+ * without firing an item update event, so the indexes of SpaceCode branch sources and triggers and the cache of job connections have to be dropped on save as well.
+ * Saving the plugin configuration also prefetches the public keys for newly connected SpaceCode instances.
+ */
+@Extension
+public class ConfigurationSaveListener extends SaveableListener {
+
+    @Override
+    public void onChange(Saveable o, XmlFile file) {
+        if (o instanceof SCMSourceOwner || o instanceof SpacePluginConfiguration) {
+            SpaceSCMSourceIndex.INSTANCE.invalidate();
+        }
+        if (o instanceof Job || o instanceof SCMSourceOwner || o instanceof SpacePluginConfiguration) {
+            JobExtensionsKt.invalidateProjectConnectionsCache();
+        }
+        if (o instanceof Job || o instanceof SpacePluginConfiguration) {
+            SpaceWebhookTriggerIndex.INSTANCE.invalidate();
+        }
+        if (o instanceof SpacePluginConfiguration) {
+            SpacePublicKeysCache.INSTANCE.prefetchMissing();
+        }
+    }
+}
@@ -6,9 +6,12 @@ import hudson.model.Item;
 import hudson.model.Job;
 import hudson.model.listeners.ItemListener;
 import jenkins.branch.MultiBranchProject;
+import org.jetbrains.space.jenkins.JobExtensionsKt;
 import org.jetbrains.space.jenkins.config.SpacePluginConfiguration;
 import org.jetbrains.space.jenkins.config.SpacePluginConfigurationKt;
 import org.jetbrains.space.jenkins.config.SpaceProjectConnectionJobProperty;
+import org.jetbrains.space.jenkins.scm.SpaceSCMSourceIndex;
+import org.jetbrains.space.jenkins.trigger.SpaceWebhookTriggerIndex;
 
 /**
  * Listens to updates in Jenkins jobs and projects and notifies SpacePluginConfiguration so that it can perform corresponding updates
@@ -17,11 +20,34 @@ import org.jetbrains.space.jenkins.config.SpaceProjectConnectionJobProperty;
 @Extension
 public class JobUpdatesListener extends ItemListener {
 
+    /**
+     * Called when a job, workflow or multibranch project is created in Jenkins.
+     */
+    @Override
+    public void onCreated(Item item) {
+        SpaceSCMSourceIndex.INSTANCE.invalidate();
+        SpaceWebhookTriggerIndex.INSTANCE.invalidate();
+        JobExtensionsKt.invalidateProjectConnectionsCache();
+    }
+
+    /**
+     * Called when all jobs, workflows and multibranch projects have been loaded on Jenkins startup.
+     */
+    @Override
+    public void onLoaded() {
+        SpaceSCMSourceIndex.INSTANCE.invalidate();
+        SpaceWebhookTriggerIndex.INSTANCE.invalidate();
+        JobExtensionsKt.invalidateProjectConnectionsCache();
+    }
+
     /**
      * Called when a job, workflow or multibranch project is renamed in Jenkins.
      */
     @Override
     public void onRenamed(Item item, String oldName, String newName) {
+        SpaceSCMSourceIndex.INSTANCE.invalidate();
+        SpaceWebhookTriggerIndex.INSTANCE.invalidate();
+        JobExtensionsKt.invalidateProjectConnectionsCache();
         ExtensionList.lookupSingleton(SpacePluginConfiguration.class).onItemRenamed(oldName, newName);
     }
 
@@ -31,6 +57,9 @@ public class JobUpdatesListener extends ItemListener {
      */
     @Override
     public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+        SpaceSCMSourceIndex.INSTANCE.invalidate();
+        SpaceWebhookTriggerIndex.INSTANCE.invalidate();
+        JobExtensionsKt.invalidateProjectConnectionsCache();
         ExtensionList.lookupSingleton(SpacePluginConfiguration.class).onItemRenamed(oldFullName, newFullName);
     }
 
@@ -40,6 +69,9 @@ public class JobUpdatesListener extends ItemListener {
      */
     @Override
     public void onUpdated(Item item) {
+        SpaceSCMSourceIndex.INSTANCE.invalidate();
+        SpaceWebhookTriggerIndex.INSTANCE.invalidate();
+        JobExtensionsKt.invalidateProjectConnectionsCache();
         if (item instanceof hudson.model.Job) {
             String jobName = item.getFullName();
             SpaceProjectConnectionJobProperty connection = ((Job<?, ?>) item).getProperty(SpaceProjectConnectionJobProperty.class);
@@ -60,6 +92,9 @@ public class JobUpdatesListener extends ItemListener {
      */
     @Override
     public void onDeleted(Item item) {
+        SpaceSCMSourceIndex.INSTANCE.invalidate();
+        SpaceWebhookTriggerIndex.INSTANCE.invalidate();
+        JobExtensionsKt.invalidateProjectConnectionsCache();
         String jobName = item.getFullName();
         ExtensionList.lookupSingleton(SpacePluginConfiguration.class).onItemDeleted(jobName);
     }
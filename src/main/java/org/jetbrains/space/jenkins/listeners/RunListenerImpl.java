@@ -7,15 +7,28 @@ import hudson.model.TaskListener;
 import hudson.model.listeners.RunListener;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.space.jenkins.config.SpacePluginConfiguration;
+import org.jetbrains.space.jenkins.trigger.SafeMergeExecutions;
+import org.jetbrains.space.jenkins.trigger.SafeMergeStatusUpdatesKt;
+import org.jetbrains.space.jenkins.trigger.SupersededBuilds;
 
 /**
- * Listens for the completion of Jenkins build and posts build status to SpaceCode if needed.
+ * Listens for the start and completion of Jenkins build and posts build status to SpaceCode if needed.
  */
 @Extension
 public class RunListenerImpl extends RunListener<Run<?, ?>> {
 
+    @Override
+    public void onStarted(Run<?, ?> run, TaskListener listener) {
+        SafeMergeExecutions.INSTANCE.onStarted(run);
+        SafeMergeStatusUpdatesKt.onSafeMergeBuildStartedOrCompleted(run);
+        SupersededBuilds.INSTANCE.onStarted(run);
+    }
+
     @Override
     public void onCompleted(Run<?, ?> run, @NotNull TaskListener listener) {
         SCMListenerKt.onBuildCompleted(run, listener);
+        SafeMergeExecutions.INSTANCE.onCompleted(run);
+        SupersededBuilds.INSTANCE.onCompleted(run);
+        SafeMergeStatusUpdatesKt.onSafeMergeBuildStartedOrCompleted(run);
     }
 }
@@ -328,7 +328,7 @@ private suspend fun SpaceClient.postBuildStatus(action: SpaceGitScmCheckoutActio
         revision = action.revision,
         branch = action.branch,
         changes = emptyList(),
-        executionStatus = status ?: getStatusFromBuild(build),
+        executionStatus = status ?: build.getSpaceExecutionStatus(),
         url = if (Jenkins.get().rootUrl != null) build.absoluteUrl else build.url,
         externalServiceName = "Jenkins",
         taskName = build.parent.fullName,
@@ -339,14 +339,17 @@ private suspend fun SpaceClient.postBuildStatus(action: SpaceGitScmCheckoutActio
     )
 }
 
-private fun getStatusFromBuild(build: Run<*, *>) = when {
-    build.isBuilding ->
+/**
+ * Maps the current state of the build to the external check status in SpaceCode
+ */
+fun Run<*, *>.getSpaceExecutionStatus() = when {
+    isBuilding ->
         CommitExecutionStatus.RUNNING
 
-    successfulResults.contains(build.result) ->
+    successfulResults.contains(result) ->
         CommitExecutionStatus.SUCCEEDED
 
-    cancelledResults.contains(build.result) ->
+    cancelledResults.contains(result) ->
         CommitExecutionStatus.TERMINATED
 
     else ->
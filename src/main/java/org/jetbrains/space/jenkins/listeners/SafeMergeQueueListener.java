@@ -0,0 +1,31 @@
+package org.jetbrains.space.jenkins.listeners;
+
+import hudson.Extension;
+import hudson.model.Queue;
+import hudson.model.queue.QueueListener;
+import org.jetbrains.space.jenkins.trigger.SafeMergeExecutions;
+import org.jetbrains.space.jenkins.trigger.SafeMergeStatusUpdatesKt;
+import org.jetbrains.space.jenkins.trigger.SupersededBuilds;
+
+/**
+ * Listens for safe merge builds entering and leaving the Jenkins build queue,
+ * keeps the registry of safe merge builds up to date and pushes the corresponding status updates to SpaceCode if enabled in the trigger settings.
+ * Also tracks the other builds triggered by SpaceCode to cancel the superseded ones (see {@link SupersededBuilds}).
+ */
+@Extension
+public class SafeMergeQueueListener extends QueueListener {
+
+    @Override
+    public void onEnterWaiting(Queue.WaitingItem wi) {
+        SafeMergeExecutions.INSTANCE.onQueued(wi);
+        SafeMergeStatusUpdatesKt.onSafeMergeQueueItemEntered(wi);
+        SupersededBuilds.INSTANCE.onQueued(wi);
+    }
+
+    @Override
+    public void onLeft(Queue.LeftItem li) {
+        SafeMergeExecutions.INSTANCE.onLeft(li);
+        SafeMergeStatusUpdatesKt.onSafeMergeQueueItemLeft(li);
+        SupersededBuilds.INSTANCE.onLeft(li);
+    }
+}
@@ -5,7 +5,7 @@ import hudson.scm.SCM
 import jenkins.scm.api.*
 import kotlinx.coroutines.runBlocking
 import org.jetbrains.space.jenkins.config.SpacePluginConfiguration
-import org.jetbrains.space.jenkins.config.getSpaceApiClientForMultiBranchProject
+import org.jetbrains.space.jenkins.config.withSpaceApiClientForMultiBranchProject
 import org.jetbrains.space.jenkins.trigger.TriggerCause
 import space.jetbrains.api.runtime.types.SRepoPushWebhookEvent
 
@@ -33,38 +33,76 @@ class SpaceBranchSCMHeadEvent(payload: SRepoPushWebhookEvent, spaceUrl: String)
     override fun getSourceName() =
         payload.repository
 
+    private val route = SpaceRepositoryRoute.of(spaceUrl, payload.projectKey.key, payload.repository)
+
+    /**
+     * Heads resolved for the matching branch sources.
+     * They depend only on the pushed commit, so they are reused for all other matching branch sources with the same SpaceCode connection
+     * and a single push event results in at most one request to SpaceCode per connection.
+     */
+    private val resolvedHeads = ResolvedHeadsMemo()
+
+    override fun isMatch(source: SCMSource) =
+        source is SpaceSCMSource && source.type == SpaceSCMSourceType.Branches
+                && SpaceSCMSourceIndex.getSources(route).any { it === source }
+
     /**
      * Lists heads and revisions associated with this event (one  head-revision pair for the updated branch)
      */
     override fun heads(source: SCMSource): MutableMap<SCMHead, SCMRevision> {
-        if (source !is SpaceSCMSource) return mutableMapOf()
-        val commitRef = payload.newCommitId ?: return mutableMapOf()
-
-        val head = runBlocking {
-            getSpaceApiClientForMultiBranchProject(
-                projectFullName = source.owner!!.fullName,
-                spaceConnectionId = source.spaceConnectionId,
-                projectKey = source.projectKey
-            )?.use { spaceClient ->
-                val commit = source.fetchCommits(spaceClient, listOf(commitRef))[commitRef] ?: return@use null
-                SpaceBranchSCMHead(
-                    name = payload.head.removePrefix(REFS_HEADS_PREFIX),
-                    latestCommit = commit.id,
-                    lastUpdated = commit.commitDate,
-                    triggerCause = TriggerCause.BranchPush(
-                        head = payload.head,
-                        commitId = commit.id,
-                        url = buildSpaceCommitUrl(
-                            spaceClient.server.serverUrl,
-                            source.projectKey,
-                            source.repository,
-                            commit.id
-                        )
-                    )
+        if (!isMatch(source)) return mutableMapOf()
+        source as SpaceSCMSource
+
+        return resolvedHeads.getOrResolve(route.spaceUrl, source) { resolveHeads(source) }
+    }
+
+    private fun resolveHeads(source: SpaceSCMSource): Map<SCMHead, SCMRevision>? {
+        val commitRef = payload.newCommitId ?: return null
+        return withSpaceApiClientForMultiBranchProject(
+            projectFullName = source.owner!!.fullName,
+            spaceConnectionId = source.spaceConnectionId,
+            projectKey = source.projectKey
+        ) { spaceClient ->
+            val commitDate = runBlocking { source.fetchCommitDates(spaceClient, listOf(commitRef)) }[commitRef]
+                ?: return null
+            val head = SpaceBranchSCMHead(
+                name = payload.head.removePrefix(REFS_HEADS_PREFIX),
+                latestCommit = commitRef,
+                lastUpdated = commitDate,
+                triggerCause = TriggerCause.BranchPush(
+                    head = payload.head,
+                    commitId = commitRef,
+                    url = buildSpaceCommitUrl(
+                        spaceClient.server.serverUrl,
+                        source.projectKey,
+                        source.repository,
+                        commitRef
+                    ),
+                    oldCommitId = payload.oldCommitId
                 )
-            }
-        } ?: return mutableMapOf<SCMHead, SCMRevision>()
+            )
+
+            mapOf(head to SpaceSCMRevision(head, head.latestCommit))
+        }
+    }
+}
+
+/**
+ * Heads resolved by an SCM event, memoized by SpaceCode url and connection of the branch sources they have been resolved for,
+ * so that the branch sources of different connections never share the heads resolved with the API client of another connection.
+ * Resolution failures are not memoized.
+ */
+internal class ResolvedHeadsMemo {
+
+    private data class Key(val spaceUrl: String, val spaceConnectionId: String)
+
+    private val heads = HashMap<Key, Map<SCMHead, SCMRevision>>()
 
-        return mutableMapOf(head to SpaceSCMRevision(head, head.latestCommit))
+    @Synchronized
+    fun getOrResolve(spaceUrl: String, source: SpaceSCMSource, resolve: () -> Map<SCMHead, SCMRevision>?): MutableMap<SCMHead, SCMRevision> {
+        val key = Key(spaceUrl, source.spaceConnectionId)
+        val resolved = heads[key]
+            ?: resolve()?.also { heads[key] = it }
+        return resolved?.let { HashMap(it) } ?: mutableMapOf()
     }
 }
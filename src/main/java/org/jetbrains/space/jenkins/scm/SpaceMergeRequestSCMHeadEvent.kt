@@ -6,7 +6,7 @@ import jenkins.scm.api.*
 import jenkins.scm.api.mixin.ChangeRequestCheckoutStrategy
 import kotlinx.coroutines.runBlocking
 import org.jetbrains.space.jenkins.config.SpacePluginConfiguration
-import org.jetbrains.space.jenkins.config.getSpaceApiClientForMultiBranchProject
+import org.jetbrains.space.jenkins.config.withSpaceApiClientForMultiBranchProject
 import org.jetbrains.space.jenkins.trigger.TriggerCause
 import space.jetbrains.api.runtime.SpaceAppInstance
 import space.jetbrains.api.runtime.types.*
@@ -28,44 +28,65 @@ class SpaceMergeRequestSCMHeadEvent(val review: MergeRequestRecord, type: SCMEve
     override fun getSourceName() =
         "Merge request in ${review.branchPairs.first().repository}"
 
+    private val route = review.branchPairs.firstOrNull()?.repository?.let {
+        SpaceRepositoryRoute.of(spaceUrl, review.project.key, it)
+    }
+
+    override fun isMatch(source: SCMSource) =
+        source is SpaceSCMSource && source.type == SpaceSCMSourceType.MergeRequests
+                && route != null && SpaceSCMSourceIndex.getSources(route).any { it === source }
+
+    /**
+     * Heads resolved for the matching branch sources.
+     * They depend only on the merge request itself, so they are reused for all other matching branch sources with the same SpaceCode connection.
+     */
+    private val resolvedHeads = ResolvedHeadsMemo()
+
     /**
      * Lists heads and revisions associated with this event - one for the merge request itself and another for its source branch
      */
     override fun heads(source: SCMSource): MutableMap<SCMHead, SCMRevision> {
         if (source !is SpaceSCMSource) return mutableMapOf()
 
-        val branchPair = review.branchPairs.first()
-        return runBlocking {
-            getSpaceApiClientForMultiBranchProject(
-                projectFullName = source.owner!!.fullName,
-                spaceConnectionId = source.spaceConnectionId,
-                projectKey = source.projectKey
-            )?.use { spaceClient ->
-                val commits = source.fetchCommits(
-                    spaceClient,
-                    listOf(branchPair.sourceBranchInfo!!.ref, branchPair.targetBranchInfo!!.ref)
-                )
-                val sourceHead = branchPair.sourceBranchInfo!!.toSpaceBranchSCMHead(commits, spaceClient, source)
-                val targetHead = branchPair.targetBranchInfo!!.toSpaceBranchSCMHead(commits, spaceClient, source)
-
-                val mergeRequestHead = SpaceMergeRequestSCMHead(
-                    mergeRequestId = review.id,
-                    sourceBranchName = branchPair.sourceBranchInfo!!.displayName,
-                    latestCommit = branchPair.sourceBranchInfo!!.ref,
-                    lastUpdated = commits[branchPair.sourceBranchInfo!!.ref]?.commitDate ?: -1,
-                    triggerCause = TriggerCause.fromMergeRequest(review, spaceClient.server.serverUrl),
-                    target = targetHead,
-                    checkoutStrategy = ChangeRequestCheckoutStrategy.HEAD
-                )
-
-                val sourceRevision = SpaceSCMRevision(sourceHead, branchPair.sourceBranchInfo!!.ref)
-
-                mutableMapOf(
-                    mergeRequestHead to sourceRevision,
-                    sourceHead to sourceRevision
-                )
+        // SCM API offers the event to every branch source in Jenkins, reject the ones for other SpaceCode instances, projects and repositories
+        // before doing anything else
+        val branchPair = review.branchPairs.firstOrNull() ?: return mutableMapOf()
+        if (route == null || source.projectKey != route.projectKey || source.repository != route.repository || source.getRoute() != route)
+            return mutableMapOf()
+
+        return resolvedHeads.getOrResolve(route.spaceUrl, source) { resolveHeads(source, branchPair) }
+    }
+
+    private fun resolveHeads(source: SpaceSCMSource, branchPair: MergeRequestBranchPair): Map<SCMHead, SCMRevision>? {
+        val sourceBranchInfo = branchPair.sourceBranchInfo ?: return null
+        val targetBranchInfo = branchPair.targetBranchInfo ?: return null
+        return withSpaceApiClientForMultiBranchProject(
+            projectFullName = source.owner!!.fullName,
+            spaceConnectionId = source.spaceConnectionId,
+            projectKey = source.projectKey
+        ) { spaceClient ->
+            val commitDates = runBlocking {
+                source.fetchCommitDates(spaceClient, listOf(sourceBranchInfo.ref, targetBranchInfo.ref))
             }
-                ?: mutableMapOf()
+            val sourceHead = sourceBranchInfo.toSpaceBranchSCMHead(commitDates, spaceClient, source)
+            val targetHead = targetBranchInfo.toSpaceBranchSCMHead(commitDates, spaceClient, source)
+
+            val mergeRequestHead = SpaceMergeRequestSCMHead(
+                mergeRequestId = review.id,
+                sourceBranchName = sourceBranchInfo.displayName,
+                latestCommit = sourceBranchInfo.ref,
+                lastUpdated = commitDates[sourceBranchInfo.ref] ?: -1,
+                triggerCause = TriggerCause.fromMergeRequest(review, spaceClient.server.serverUrl),
+                target = targetHead,
+                checkoutStrategy = ChangeRequestCheckoutStrategy.HEAD
+            )
+
+            val sourceRevision = SpaceSCMRevision(sourceHead, sourceBranchInfo.ref)
+
+            mapOf(
+                mergeRequestHead to sourceRevision,
+                sourceHead to sourceRevision
+            )
         }
     }
 }
@@ -0,0 +1,177 @@
+package org.jetbrains.space.jenkins.scm
+
+import hudson.model.Executor
+import hudson.model.Queue
+import hudson.model.TaskListener
+import kotlinx.coroutines.*
+import org.jetbrains.space.jenkins.config.leaseSpaceApiClientForMultiBranchProject
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.logging.Logger
+
+/**
+ * Coordinates the discovery of heads for all SpaceCode branch sources of a multibranch project.
+ *
+ * Multibranch project indexing calls [SpaceSCMSource.retrieve] for its branch sources one after another on the executor running the indexing.
+ * When the first SpaceCode branch source of a project gets indexed, head listing is started concurrently for all SpaceCode branch sources of this project.
+ * Each subsequent branch source then picks up its already running listing instead of starting from scratch,
+ * so that indexing time tracks the slowest branch source rather than the sum of them all.
+ * Listings are tied to the indexing run (the executable on the current executor) and are cancelled as soon as the run is interrupted or finishes.
+ *
+ * Only talking to SpaceCode is performed concurrently. Each listing runs at most [PREFETCH_CAPACITY] heads ahead of its consumer,
+ * and the discovered heads are streamed to the indexing thread of the corresponding branch source,
+ * which processes them (probing and passing them to the [jenkins.scm.api.SCMHeadObserver]) as the SCM API expects.
+ */
+object SpaceMultiSourceIndexer {
+
+    /**
+     * Discovers heads for the given branch source, passing each of them to [process] on the calling thread.
+     * Listing stops as soon as [process] returns true, that is when the observer does not need any more heads.
+     *
+     * @throws InterruptedException when the indexing is aborted, all listings for the indexing run are cancelled in that case
+     */
+    fun discoverHeads(source: SpaceSCMSource, listener: TaskListener, process: (SpaceSCMHead, SpaceSCMRevision) -> Boolean) {
+        val indexing = Executor.currentExecutor()?.currentExecutable?.takeIf { it.parent === source.owner }
+        val discovery = indexing?.let { takeConcurrentDiscovery(it, source) }
+            ?: startDiscovery(source)
+            ?: return
+
+        try {
+            discovery.consume(listener, process)
+        } catch (ex: InterruptedException) {
+            indexing?.let { rounds.remove(it)?.cancel() }
+            throw ex
+        }
+    }
+
+    /**
+     * Takes the listing started for the given branch source within the indexing run,
+     * starting the listings for all the other SpaceCode branch sources of the project on the first call within the run.
+     * Returns null when the listing for the branch source has to be started from scratch.
+     */
+    private fun takeConcurrentDiscovery(indexing: Queue.Executable, source: SpaceSCMSource): HeadsDiscovery? {
+        dropFinishedRounds()
+
+        // branch sources of a project are indexed one after another on the same thread, so no other thread updates the round of this run
+        val round = rounds[indexing]
+            ?: run {
+                val otherSources = source.owner?.scmSources.orEmpty()
+                    .filterIsInstance<SpaceSCMSource>()
+                    .filter { it !== source }
+                if (otherSources.isEmpty())
+                    return null
+
+                LOGGER.info("Starting concurrent discovery for ${otherSources.size + 1} SpaceCode branch sources of \"${source.owner?.fullName}\"")
+                val round = IndexingRound()
+                otherSources.forEach { other ->
+                    startDiscovery(other)?.let { round.pending[other.id] = it }
+                }
+                rounds[indexing] = round
+                return null
+            }
+
+        val discovery = round.pending.remove(source.id)
+        if (round.pending.isEmpty())
+            rounds.remove(indexing, round)
+        return discovery
+    }
+
+    /**
+     * Starts listing heads for the given branch source in background, or returns null if the branch source is not connected to SpaceCode.
+     * The listing holds a lease of the shared SpaceCode API client until it completes or gets cancelled.
+     */
+    private fun startDiscovery(source: SpaceSCMSource): HeadsDiscovery? {
+        val owner = source.owner ?: return null
+        val lease = leaseSpaceApiClientForMultiBranchProject(owner.fullName, source.spaceConnectionId, source.projectKey)
+            ?: return null
+
+        val items = LinkedBlockingQueue<DiscoveryItem>(PREFETCH_CAPACITY)
+        val job = scope.launch {
+            val end = try {
+                source.discoverHeads(
+                    lease.client,
+                    log = { runInterruptible { items.put(DiscoveryItem.Message(it)) } },
+                    onHead = { head, revision -> runInterruptible { items.put(DiscoveryItem.Head(head, revision)) } }
+                )
+                DiscoveryItem.End(null)
+            } catch (ex: CancellationException) {
+                throw ex
+            } catch (ex: Throwable) {
+                DiscoveryItem.End(ex)
+            }
+            runInterruptible { items.put(end) }
+        }
+        job.invokeOnCompletion { lease.close() }
+        return HeadsDiscovery(items, job)
+    }
+
+    /**
+     * Cancels the listings of indexing runs that have finished without picking up the results for all branch sources,
+     * so that they do not keep running and holding SpaceCode API clients.
+     */
+    private fun dropFinishedRounds() {
+        rounds.forEach { (indexing, round) ->
+            if (Executor.of(indexing) == null && rounds.remove(indexing, round))
+                round.cancel()
+        }
+    }
+
+    /**
+     * Listing of heads for a single branch source running in background.
+     */
+    private class HeadsDiscovery(val items: BlockingQueue<DiscoveryItem>, val job: Job) {
+
+        /**
+         * Passes the listed heads to [process] on the calling thread until the listing completes or [process] returns true.
+         * The listing is cancelled when this method returns or throws.
+         */
+        fun consume(listener: TaskListener, process: (SpaceSCMHead, SpaceSCMRevision) -> Boolean) {
+            try {
+                while (true) {
+                    when (val item = items.take()) {
+                        is DiscoveryItem.Message ->
+                            listener.logger.println(item.text)
+                        is DiscoveryItem.Head ->
+                            if (process(item.head, item.revision)) return
+                        is DiscoveryItem.End -> {
+                            item.error?.let { throw it }
+                            return
+                        }
+                    }
+                }
+            } finally {
+                job.cancel()
+            }
+        }
+    }
+
+    private sealed class DiscoveryItem {
+        class Message(val text: String) : DiscoveryItem()
+        class Head(val head: SpaceSCMHead, val revision: SpaceSCMRevision) : DiscoveryItem()
+        class End(val error: Throwable?) : DiscoveryItem()
+    }
+
+    /**
+     * Concurrent listings of heads for the branch sources of a multibranch project within a single indexing run,
+     * keyed by the id of the branch source.
+     */
+    private class IndexingRound {
+        val pending = ConcurrentHashMap<String, HeadsDiscovery>()
+
+        fun cancel() {
+            pending.values.forEach { it.job.cancel() }
+        }
+    }
+
+    private val rounds = ConcurrentHashMap<Queue.Executable, IndexingRound>()
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    /**
+     * Maximum number of heads and log messages a background listing may fetch ahead of its consumer.
+     */
+    private const val PREFETCH_CAPACITY = 100
+}
+
+private val LOGGER = Logger.getLogger(SpaceMultiSourceIndexer::class.java.name)
@@ -0,0 +1,237 @@
+package org.jetbrains.space.jenkins.scm
+
+import com.cloudbees.jenkins.plugins.sshcredentials.SSHUserPrivateKey
+import com.cloudbees.plugins.credentials.CredentialsMatchers
+import com.cloudbees.plugins.credentials.CredentialsProvider
+import hudson.EnvVars
+import hudson.model.TaskListener
+import hudson.plugins.git.extensions.GitSCMExtension
+import hudson.plugins.git.extensions.impl.CloneOption
+import hudson.security.ACL
+import hudson.util.DaemonThreadFactory
+import hudson.util.NamingThreadFactory
+import io.ktor.http.*
+import jenkins.model.Jenkins
+import jenkins.util.SystemProperties
+import org.eclipse.jgit.transport.RefSpec
+import org.eclipse.jgit.transport.URIish
+import org.jenkinsci.plugins.gitclient.Git
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * Bare mirrors of SpaceCode git repositories maintained by Jenkins controller
+ * and used as reference repositories for the builds cloning these repositories, so that only the objects missing from the mirror
+ * are transferred from SpaceCode on every clone.
+ *
+ * Mirrors are disabled by default and are enabled with the
+ * `org.jetbrains.space.jenkins.scm.SpaceRepositoryMirrors.enabled` system property.
+ * They are kept in the directory specified by the `org.jetbrains.space.jenkins.scm.SpaceRepositoryMirrors.directory`
+ * system property (`caches/jetbrains-space-mirrors` within Jenkins home by default).
+ * For the builds running on agents, the directory should be shared storage mounted at the same path on the agents;
+ * git ignores the reference repository that does not exist on the agent and clones everything from SpaceCode then.
+ *
+ * A mirror is created in the background when a build first clones the repository, and is fetched incrementally
+ * whenever SpaceCode reports a push to the repository with a webhook.
+ * Since webhooks are not set up for every repository and can be missed, the mirror is also fetched in the background
+ * when a build uses it and its last successful fetch is older than the configured age, which is set in minutes with the
+ * `org.jetbrains.space.jenkins.scm.SpaceRepositoryMirrors.maxAgeMinutes` system property (60 by default).
+ * The build itself does not wait for this fetch, git transfers whatever is missing from the mirror from SpaceCode anyway.
+ * The mirror is only used as a reference repository after its first fetch has completed successfully.
+ * Git operations for the same mirror never run concurrently; a fetch requested while another one is running
+ * is performed once the running one completes. Up to two mirrors are updated at the same time by default,
+ * which is configured with the `org.jetbrains.space.jenkins.scm.SpaceRepositoryMirrors.parallelism` system property.
+ */
+object SpaceRepositoryMirrors {
+
+    private data class MirrorKey(val spaceHost: String, val projectKey: String, val repository: String)
+
+    private class Mirror(val directory: File) {
+        /**
+         * Marker file written after every successful fetch.
+         * The git repository itself appears as soon as the first fetch starts, long before it gets all the objects.
+         */
+        val fetchedMarker: File
+            get() = directory.resolve(FETCHED_MARKER)
+
+        val isFetched: Boolean
+            get() = fetchedMarker.exists()
+
+        /**
+         * Whether the last successful fetch has happened more than [maxAgeMillis] ago.
+         */
+        val isStale: Boolean
+            get() = System.currentTimeMillis() - fetchedMarker.lastModified() > maxAgeMillis
+
+        @Volatile
+        var remoteUrl: String? = null
+
+        @Volatile
+        var credentialsId: String? = null
+
+        // guarded by the mirror instance lock
+        var fetchScheduled = false
+        var repeatRequested = false
+    }
+
+    private val enabled =
+        SystemProperties.getBoolean(SpaceRepositoryMirrors::class.java.name + ".enabled", false)
+
+    private val maxAgeMillis =
+        TimeUnit.MINUTES.toMillis(SystemProperties.getLong(SpaceRepositoryMirrors::class.java.name + ".maxAgeMinutes", 60L))
+
+    private val mirrors = ConcurrentHashMap<MirrorKey, Mirror>()
+
+    /**
+     * Returns the extensions for the git SCM cloning the SpaceCode repository, with the clone option pointing to the mirror as the reference repository.
+     * Extensions are returned as is if mirrors are disabled, the mirror has not been created yet,
+     * or the reference repository is already specified explicitly in the clone options.
+     */
+    fun withReferenceRepository(
+        extensions: List<GitSCMExtension>,
+        spaceUrl: String,
+        projectKey: String,
+        repository: String,
+        remoteUrl: String,
+        credentialsId: String?
+    ): List<GitSCMExtension> {
+        if (!enabled)
+            return extensions
+
+        val cloneOption = extensions.filterIsInstance<CloneOption>().firstOrNull()
+        if (cloneOption != null && !cloneOption.reference.isNullOrBlank())
+            return extensions
+
+        val mirror = getMirror(spaceUrl, projectKey, repository)
+        mirror.remoteUrl = remoteUrl
+        mirror.credentialsId = credentialsId
+        if (!mirror.isFetched) {
+            scheduleFetch(mirror)
+            return extensions
+        }
+        if (mirror.isStale) {
+            // a running fetch brings the mirror up to date already, no need to repeat it for every build starting meanwhile
+            scheduleFetch(mirror, repeatIfRunning = false)
+        }
+
+        val mirrorCloneOption = CloneOption(
+            cloneOption?.isShallow ?: false,
+            cloneOption?.isNoTags ?: false,
+            mirror.directory.absolutePath,
+            cloneOption?.timeout
+        ).apply {
+            cloneOption?.let {
+                depth = it.depth
+                isHonorRefspec = it.isHonorRefspec
+            }
+        }
+        return extensions.filterNot { it is CloneOption } + mirrorCloneOption
+    }
+
+    /**
+     * Fetches the new commits into the mirror of the repository in the background after a push to the repository.
+     * Does nothing if there is no mirror for the repository yet.
+     */
+    fun onPush(spaceUrl: String, projectKey: String, repository: String) {
+        if (!enabled)
+            return
+
+        mirrors[getKey(spaceUrl, projectKey, repository)]
+            ?.takeIf { it.remoteUrl != null }
+            ?.let { scheduleFetch(it) }
+    }
+
+    private fun getMirror(spaceUrl: String, projectKey: String, repository: String): Mirror {
+        val key = getKey(spaceUrl, projectKey, repository)
+        return mirrors.computeIfAbsent(key) {
+            Mirror(rootDirectory.resolve(it.spaceHost).resolve(it.projectKey).resolve("${it.repository}.git"))
+        }
+    }
+
+    private fun getKey(spaceUrl: String, projectKey: String, repository: String) =
+        MirrorKey(Url(spaceUrl).hostWithPort.replace(':', '_'), projectKey, repository)
+
+    private fun scheduleFetch(mirror: Mirror, repeatIfRunning: Boolean = true) {
+        val started = synchronized(mirror) {
+            if (mirror.fetchScheduled) {
+                if (repeatIfRunning) mirror.repeatRequested = true
+                false
+            } else {
+                mirror.fetchScheduled = true
+                true
+            }
+        }
+        if (started) {
+            executor.execute { run(mirror) }
+        }
+    }
+
+    private fun run(mirror: Mirror) {
+        while (true) {
+            try {
+                fetch(mirror)
+            } catch (ex: Throwable) {
+                LOGGER.log(Level.WARNING, "Failed to update the mirror of SpaceCode repository ${mirror.remoteUrl} in ${mirror.directory}", ex)
+            }
+
+            val repeat = synchronized(mirror) {
+                mirror.repeatRequested.also { repeat ->
+                    mirror.repeatRequested = false
+                    mirror.fetchScheduled = repeat
+                }
+            }
+            if (!repeat)
+                return
+        }
+    }
+
+    private fun fetch(mirror: Mirror) {
+        val remoteUrl = mirror.remoteUrl ?: return
+        mirror.directory.mkdirs()
+
+        val git = Git.with(TaskListener.NULL, EnvVars()).`in`(mirror.directory).using("git").client
+        mirror.credentialsId
+            ?.let { credentialsId ->
+                CredentialsMatchers.firstOrNull(
+                    CredentialsProvider.lookupCredentialsInItemGroup(SSHUserPrivateKey::class.java, Jenkins.get(), ACL.SYSTEM2, emptyList()),
+                    CredentialsMatchers.withId(credentialsId)
+                )
+            }
+            ?.let { git.addDefaultCredentials(it) }
+
+        val isNew = !mirror.isFetched
+        if (isNew) {
+            LOGGER.info("Creating the mirror of SpaceCode repository $remoteUrl in ${mirror.directory}")
+        }
+        if (!mirror.directory.resolve("HEAD").exists()) {
+            git.init_().workspace(mirror.directory.absolutePath).bare(true).execute()
+        }
+        git.fetch_()
+            .from(URIish(remoteUrl), listOf(RefSpec("+refs/heads/*:refs/heads/*"), RefSpec("+refs/tags/*:refs/tags/*")))
+            .prune(true)
+            .execute()
+        mirror.fetchedMarker.writeText(System.currentTimeMillis().toString())
+        if (isNew) {
+            LOGGER.info("Created the mirror of SpaceCode repository $remoteUrl in ${mirror.directory}")
+        }
+    }
+
+    private val rootDirectory: File by lazy {
+        SystemProperties.getString(SpaceRepositoryMirrors::class.java.name + ".directory")
+            ?.let { File(it) }
+            ?: Jenkins.get().rootDir.resolve("caches").resolve("jetbrains-space-mirrors")
+    }
+
+    private val executor = Executors.newFixedThreadPool(
+        SystemProperties.getInteger(SpaceRepositoryMirrors::class.java.name + ".parallelism", 2).coerceAtLeast(1),
+        NamingThreadFactory(DaemonThreadFactory(), "SpaceCode repository mirrors")
+    )
+}
+
+private const val FETCHED_MARKER = "jenkins-mirror-fetched"
+
+private val LOGGER = Logger.getLogger(SpaceRepositoryMirrors::class.java.name)
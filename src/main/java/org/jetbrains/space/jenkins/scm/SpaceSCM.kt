@@ -17,6 +17,7 @@ import org.jetbrains.space.jenkins.config.getUserRemoteConfig
 import org.jetbrains.space.jenkins.listeners.SpaceGitCheckoutParams
 import org.jetbrains.space.jenkins.listeners.getSpaceGitCheckoutParams
 import org.jetbrains.space.jenkins.listeners.mergeRequestFields
+import org.jetbrains.space.jenkins.trigger.MergeRequestCache
 import org.jetbrains.space.jenkins.trigger.SpaceWebhookTrigger
 import org.kohsuke.stapler.DataBoundConstructor
 import org.kohsuke.stapler.HttpResponse
@@ -26,6 +27,7 @@ import space.jetbrains.api.runtime.types.MergeRequestRecord
 import space.jetbrains.api.runtime.types.ProjectIdentifier
 import space.jetbrains.api.runtime.types.ReviewIdentifier
 import java.net.HttpURLConnection
+import java.util.WeakHashMap
 import java.util.logging.Level
 import java.util.logging.Logger
 
@@ -48,7 +50,15 @@ fun initializeGitScm(scm: SpaceSCM, job: Job<*, *>, build: Run<*, *>?, spacePlug
         throw RuntimeException("Error connecting to JetBrains SpaceCode - $ex")
     }
     val repoBrowser = SpaceRepositoryBrowser(gitCheckoutParams.baseUrl, gitCheckoutParams.connection.projectKey, gitCheckoutParams.repositoryName)
-    return GitSCM(listOf(remoteConfig), listOfNotNull(branchToBuild?.let { BranchSpec(it) }), repoBrowser, scm.gitTool, scm.extensions)
+    val extensions = SpaceRepositoryMirrors.withReferenceRepository(
+        extensions = scm.extensions,
+        spaceUrl = gitCheckoutParams.baseUrl,
+        projectKey = gitCheckoutParams.connection.projectKey,
+        repository = gitCheckoutParams.repositoryName,
+        remoteUrl = remoteConfig.url,
+        credentialsId = remoteConfig.credentialsId
+    )
+    return GitSCM(listOf(remoteConfig), listOfNotNull(branchToBuild?.let { BranchSpec(it) }), repoBrowser, scm.gitTool, extensions)
 }
 
 /**
@@ -152,9 +162,22 @@ fun Run<*, *>.getForcedBranchName() =
 fun Run<*, *>.getForcedMergeRequestNumber() =
     (getAction(ParametersAction::class.java)?.getParameter("SPACE_MERGE_REQUEST_NUMBER") as? StringParameterValue)?.getValue()?.toIntOrNull()
 
-fun Run<*, *>.getForcedMergeRequest(space: SpaceGitCheckoutParams) =
-    getForcedMergeRequestNumber()?.let { mergeRequestNumber ->
-        runBlocking {
+/**
+ * Fetches the merge request specified explicitly by the build parameter.
+ * <br />
+ * The merge request is requested several times during a build (when initializing git SCM, on checkout, on every checkout step of a pipeline),
+ * so it is resolved at most once per build and then taken from [forcedMergeRequestsCache].
+ * The record received with the latest webhook for this merge request is used if there is one, see [MergeRequestCache].
+ */
+fun Run<*, *>.getForcedMergeRequest(space: SpaceGitCheckoutParams): MergeRequestRecord? {
+    val mergeRequestNumber = getForcedMergeRequestNumber() ?: return null
+    val key = ForcedMergeRequestKey(space.baseUrl, space.connection.projectKey, mergeRequestNumber)
+    synchronized(forcedMergeRequestsCache) {
+        forcedMergeRequestsCache[this]?.takeIf { it.key == key }?.let { return it.mergeRequest }
+    }
+
+    val mergeRequest = MergeRequestCache.getByNumber(space.baseUrl, space.connection.projectKey, mergeRequestNumber)
+        ?: runBlocking {
             space.connection.getApiClient(space.baseUrl).use {
                 it.projects.codeReviews.getCodeReview(
                     ProjectIdentifier.Key(space.connection.projectKey),
@@ -162,8 +185,21 @@ fun Run<*, *>.getForcedMergeRequest(space: SpaceGitCheckoutParams) =
                     mergeRequestFields
                 )
             } as? MergeRequestRecord
-        }
+        }?.also { MergeRequestCache.put(space.baseUrl, it, feedChannelId = null) }
+    synchronized(forcedMergeRequestsCache) {
+        forcedMergeRequestsCache[this] = CachedForcedMergeRequest(key, mergeRequest)
     }
+    return mergeRequest
+}
+
+private data class ForcedMergeRequestKey(val spaceUrl: String, val projectKey: String, val mergeRequestNumber: Int)
+
+private class CachedForcedMergeRequest(val key: ForcedMergeRequestKey, val mergeRequest: MergeRequestRecord?)
+
+/**
+ * Forced merge requests resolved for builds, held only as long as the build itself is held in memory
+ */
+private val forcedMergeRequestsCache = WeakHashMap<Run<*, *>, CachedForcedMergeRequest>()
 
 private const val CUSTOM_SPACE_REPOSITORY = "customSpaceRepository"
 private const val REPOSITORY = "repository"
@@ -0,0 +1,311 @@
+package org.jetbrains.space.jenkins.scm
+
+import hudson.ExtensionList
+import hudson.model.Item
+import hudson.model.Job
+import hudson.model.Run
+import jenkins.scm.api.SCMFile
+import jenkins.scm.api.SCMFileSystem
+import jenkins.scm.api.SCMHead
+import jenkins.scm.api.SCMRevision
+import jenkins.util.SystemProperties
+import kotlinx.coroutines.runBlocking
+import org.jetbrains.space.jenkins.config.SpacePluginConfiguration
+import org.jetbrains.space.jenkins.config.leaseSharedApiClient
+import org.jetbrains.space.jenkins.config.leaseSpaceApiClientForMultiBranchProject
+import org.jetbrains.space.jenkins.listeners.getSpaceGitCheckoutParams
+import space.jetbrains.api.runtime.SpaceClient
+import space.jetbrains.api.runtime.resources.projects
+import space.jetbrains.api.runtime.types.GitEntryType
+import space.jetbrains.api.runtime.types.GitFile
+import space.jetbrains.api.runtime.types.ProjectIdentifier
+import java.io.ByteArrayInputStream
+import java.io.Closeable
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * File system view of a SpaceCode git repository at a given revision.
+ *
+ * Allows Jenkins to read the pipeline script and other files for a branch or merge request
+ * (lightweight checkout) without cloning the git repository on the controller.
+ * Git entries and file contents are read with the given [SpaceRepositoryReader], which is backed by SpaceCode HTTP API (see [SpaceApiRepositoryReader]).
+ * When the file system is built with a lease of the shared SpaceCode API client, the lease is released when Jenkins closes the file system.
+ *
+ * @see <a href="https://github.com/jenkinsci/scm-api-plugin/blob/master/docs/implementation.adoc">SCM API implementation guide</a>
+ */
+class SpaceSCMFileSystem(
+    private val reader: SpaceRepositoryReader,
+    revision: SCMRevision?,
+    private val apiClientLease: Closeable? = null
+) : SCMFileSystem(revision) {
+
+    override fun close() {
+        apiClientLease?.close()
+    }
+
+    override fun lastModified() =
+        (revision?.head as? SpaceSCMHead)?.lastUpdated?.takeIf { it > 0 } ?: 0L
+
+    override fun getRoot(): SCMFile =
+        SpaceSCMFile(this)
+
+    /**
+     * Lists git entries at the given path, that is either the single entry for a file or the entries of a directory.
+     */
+    fun listEntries(path: String): List<SpaceRepositoryEntry> =
+        reader.listEntries(path)
+
+    /**
+     * Fetches the content of the file at the given path.
+     */
+    fun getContent(path: String): ByteArray =
+        reader.readFile(path)
+}
+
+/**
+ * Reads git entries and file contents of a SpaceCode git repository at a given revision for the [SpaceSCMFileSystem].
+ */
+interface SpaceRepositoryReader {
+
+    /**
+     * Lists git entries at the given path, that is either the single entry for a file or the entries of a directory.
+     */
+    fun listEntries(path: String): List<SpaceRepositoryEntry>
+
+    /**
+     * Reads the content of the file at the given path.
+     */
+    fun readFile(path: String): ByteArray
+}
+
+/**
+ * Git entry of a SpaceCode git repository.
+ *
+ * @property path Path of the entry relative to the repository root
+ */
+data class SpaceRepositoryEntry(val path: String, val type: SCMFile.Type)
+
+/**
+ * [SpaceRepositoryReader] backed by SpaceCode HTTP API.
+ * Listings and file contents for a given commit never change, so they are cached by commit
+ * in [SpaceFileListingCache] and [SpaceFileContentCache] respectively.
+ */
+class SpaceApiRepositoryReader(
+    private val spaceClient: SpaceClient,
+    val projectKey: String,
+    val repository: String,
+    val commit: String
+) : SpaceRepositoryReader {
+
+    override fun listEntries(path: String): List<SpaceRepositoryEntry> =
+        runBlocking {
+            spaceClient.listRepositoryFiles(projectKey, repository, commit, path).map { it.toRepositoryEntry() }
+        }
+
+    override fun readFile(path: String): ByteArray {
+        val key = RepositoryPathKey(spaceClient.server.serverUrl, projectKey, repository, commit, path)
+            .takeIf { isCommitHash(commit) }
+        key?.let { SpaceFileContentCache.get(it) }?.let { return it }
+
+        val content = runBlocking {
+            spaceClient.projects.repositories.textContent(ProjectIdentifier.Key(projectKey), repository, commit, path)
+        }.toByteArray(Charsets.UTF_8)
+        key?.let { SpaceFileContentCache.put(it, content) }
+        return content
+    }
+}
+
+/**
+ * File or directory within the [SpaceSCMFileSystem]
+ */
+class SpaceSCMFile : SCMFile {
+
+    private val fileSystem: SpaceSCMFileSystem
+
+    private val assumedType: SCMFile.Type?
+
+    constructor(fileSystem: SpaceSCMFileSystem) : super() {
+        this.fileSystem = fileSystem
+        this.assumedType = SCMFile.Type.DIRECTORY
+    }
+
+    private constructor(parent: SpaceSCMFile, name: String, assumedType: SCMFile.Type?) : super(parent, name) {
+        this.fileSystem = parent.fileSystem
+        this.assumedType = assumedType
+    }
+
+    override fun newChild(name: String, assumeIsDirectory: Boolean): SCMFile =
+        SpaceSCMFile(this, name, if (assumeIsDirectory) SCMFile.Type.DIRECTORY else null)
+
+    override fun children(): Iterable<SCMFile> =
+        fileSystem.listEntries(path)
+            .filter { it.path != path }
+            .map { SpaceSCMFile(this, it.path.substringAfterLast('/'), it.type) }
+
+    override fun lastModified() =
+        fileSystem.lastModified()
+
+    override fun type(): SCMFile.Type =
+        assumedType ?: fileSystem.listEntries(path).toSCMFileType(path)
+
+    override fun content() =
+        ByteArrayInputStream(fileSystem.getContent(path))
+}
+
+/**
+ * Builds [SpaceSCMFileSystem] for the SpaceCode branch sources of multibranch projects and for jobs with SpaceCode SCM.
+ * Returns null whenever the commit to read files from or the SpaceCode connection cannot be determined,
+ * in which case Jenkins falls back to the full checkout.
+ */
+fun buildSpaceSCMFileSystem(source: SpaceSCMSource, head: SCMHead, revision: SCMRevision?): SCMFileSystem? {
+    val owner = source.owner ?: return null
+    val commit = (revision as? SpaceSCMRevision)?.hash
+        ?: (head as? SpaceSCMHead)?.latestCommit
+        ?: return null
+    val lease = leaseSpaceApiClientForMultiBranchProject(owner.fullName, source.spaceConnectionId, source.projectKey)
+        ?: return null
+    return SpaceSCMFileSystem(SpaceApiRepositoryReader(lease.client, source.projectKey, source.repository, commit), revision, lease)
+}
+
+fun buildSpaceSCMFileSystem(owner: Item, scm: SpaceSCM, revision: SCMRevision?, build: Run<*, *>?): SCMFileSystem? {
+    val job = owner as? Job<*, *> ?: return null
+    return try {
+        val (params, branchToBuild, _) = ExtensionList.lookupSingleton(SpacePluginConfiguration::class.java)
+            .getSpaceGitCheckoutParams(scm, job, build)
+        // branch to build may come from the job configuration or build parameters and can be an arbitrary refspec,
+        // only a commit hash or a plain branch name can be passed to SpaceCode as a revision to read files from
+        val commit = (revision as? SpaceSCMRevision)?.hash
+            ?: branchToBuild?.takeIf { isCommitHash(it) || isPlainBranchRef(it) }
+            ?: return null
+        val lease = params.connection.leaseSharedApiClient(params.baseUrl)
+        SpaceSCMFileSystem(SpaceApiRepositoryReader(lease.client, params.connection.projectKey, params.repositoryName, commit), revision, lease)
+    } catch (ex: IllegalStateException) {
+        // the job is not connected to SpaceCode or its connection is incomplete
+        LOGGER.log(Level.FINE, "Cannot build SpaceCode file system for ${owner.fullName}, falling back to full checkout", ex)
+        null
+    } catch (ex: Exception) {
+        LOGGER.log(Level.WARNING, "Cannot build SpaceCode file system for ${owner.fullName}, falling back to full checkout", ex)
+        null
+    }
+}
+
+/**
+ * Maps the git entries listed for the given path to the type of the file at this path.
+ */
+fun List<SpaceRepositoryEntry>.toSCMFileType(path: String) =
+    when {
+        isEmpty() ->
+            SCMFile.Type.NONEXISTENT
+        size == 1 && this[0].path == path ->
+            this[0].type
+        else ->
+            SCMFile.Type.DIRECTORY
+    }
+
+fun GitFile.toRepositoryEntry() =
+    SpaceRepositoryEntry(path, type.toSCMFileType())
+
+private fun GitEntryType.toSCMFileType() =
+    when (this) {
+        GitEntryType.EXE_FILE, GitEntryType.FILE ->
+            SCMFile.Type.REGULAR_FILE
+        GitEntryType.DIR ->
+            SCMFile.Type.DIRECTORY
+        GitEntryType.GIT_LINK, GitEntryType.SYM_LINK ->
+            SCMFile.Type.LINK
+    }
+
+/**
+ * Lists git entries at the given path and revision of the SpaceCode git repository,
+ * that is either the single entry for a file or the entries of a directory.
+ * Listings for revisions that are commit hashes never change, so they are cached in [SpaceFileListingCache].
+ */
+suspend fun SpaceClient.listRepositoryFiles(projectKey: String, repository: String, revision: String, path: String): List<GitFile> {
+    val key = RepositoryPathKey(server.serverUrl, projectKey, repository, revision, path)
+        .takeIf { isCommitHash(revision) }
+    key?.let { SpaceFileListingCache.get(it) }?.let { return it }
+
+    val files = projects.repositories.files(ProjectIdentifier.Key(projectKey), repository, revision, path)
+    key?.let { SpaceFileListingCache.put(it, files) }
+    return files
+}
+
+private fun isCommitHash(revision: String) =
+    (revision.length == 40 || revision.length == 64) && revision.all { it in '0'..'9' || it in 'a'..'f' }
+
+/**
+ * Checks that the value is a fully qualified name of a single branch (`refs/heads/...`)
+ * rather than a refspec, a pattern or a range.
+ */
+private fun isPlainBranchRef(value: String): Boolean {
+    val branchName = value.removePrefix(REFS_HEADS_PREFIX).takeIf { it != value && it.isNotEmpty() }
+        ?: return false
+    return branchName.none { it.isWhitespace() || it.isISOControl() || it in REFSPEC_CHARS }
+            && !branchName.contains("..")
+            && !branchName.startsWith('/') && !branchName.endsWith('/')
+}
+
+private const val REFSPEC_CHARS = ":*?[]\\^~+"
+
+/**
+ * Contents of files in SpaceCode git repositories fetched for lightweight checkouts, keyed by commit and path.
+ * Holds the most recently used entries up to the total size configured with the
+ * `org.jetbrains.space.jenkins.scm.SpaceFileContentCache.maxSize` system property (16 MB by default).
+ */
+object SpaceFileContentCache {
+
+    private val maxSize = SystemProperties.getLong(SpaceFileContentCache::class.java.name + ".maxSize", 16L * 1024 * 1024)
+
+    private val entries = LinkedHashMap<RepositoryPathKey, ByteArray>(16, 0.75f, true)
+
+    private var totalSize = 0L
+
+    fun get(key: RepositoryPathKey): ByteArray? =
+        synchronized(entries) { entries[key] }
+
+    fun put(key: RepositoryPathKey, content: ByteArray) {
+        if (content.size > maxSize)
+            return
+
+        synchronized(entries) {
+            entries.put(key, content)?.let { totalSize -= it.size }
+            totalSize += content.size
+
+            val iterator = entries.values.iterator()
+            while (totalSize > maxSize && iterator.hasNext()) {
+                totalSize -= iterator.next().size
+                iterator.remove()
+            }
+        }
+    }
+}
+
+/**
+ * Listings of paths in SpaceCode git repositories fetched by probes and lightweight checkouts, keyed by commit and path.
+ * Holds the most recently used entries up to the number configured with the
+ * `org.jetbrains.space.jenkins.scm.SpaceFileListingCache.maxEntries` system property (1000 by default).
+ */
+object SpaceFileListingCache {
+
+    private val maxEntries = SystemProperties.getInteger(SpaceFileListingCache::class.java.name + ".maxEntries", 1000)
+
+    private val entries = object : LinkedHashMap<RepositoryPathKey, List<GitFile>>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<RepositoryPathKey, List<GitFile>>?) =
+            size > maxEntries
+    }
+
+    fun get(key: RepositoryPathKey): List<GitFile>? =
+        synchronized(entries) { entries[key] }
+
+    fun put(key: RepositoryPathKey, files: List<GitFile>) {
+        synchronized(entries) { entries[key] = files }
+    }
+}
+
+/**
+ * Identifies a path at a given commit of a SpaceCode git repository for caching purposes.
+ */
+data class RepositoryPathKey(val spaceUrl: String, val projectKey: String, val repository: String, val commit: String, val path: String)
+
+private val LOGGER = Logger.getLogger(SpaceSCMFileSystem::class.java.name)
@@ -0,0 +1,61 @@
+package org.jetbrains.space.jenkins.scm;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.scm.SCM;
+import hudson.scm.SCMDescriptor;
+import jenkins.scm.api.*;
+
+/**
+ * Enables lightweight checkout for the jobs with SpaceCode SCM and for the branch sources of multibranch projects,
+ * so that Jenkins can load pipeline script from SpaceCode git repository without cloning it on the controller.
+ *
+ * @see SpaceSCMFileSystem
+ */
+@Extension
+public class SpaceSCMFileSystemBuilder extends SCMFileSystem.Builder {
+
+    @Override
+    public boolean supports(SCM source) {
+        return source instanceof SpaceSCM;
+    }
+
+    @Override
+    public boolean supports(SCMSource source) {
+        return source instanceof SpaceSCMSource;
+    }
+
+    @Override
+    protected boolean supportsDescriptor(SCMDescriptor<?> descriptor) {
+        return descriptor instanceof SpaceSCM.DescriptorImpl;
+    }
+
+    @Override
+    protected boolean supportsDescriptor(SCMSourceDescriptor descriptor) {
+        return descriptor instanceof SpaceSCMSource.DescriptorImpl;
+    }
+
+    @Override
+    public SCMFileSystem build(@NonNull Item owner, @NonNull SCM scm, @CheckForNull SCMRevision rev) {
+        return build(owner, scm, rev, null);
+    }
+
+    @Override
+    public SCMFileSystem build(@NonNull Item owner, @NonNull SCM scm, @CheckForNull SCMRevision rev, @CheckForNull Run<?, ?> build) {
+        if (!(scm instanceof SpaceSCM))
+            return null;
+
+        return SpaceSCMFileSystemKt.buildSpaceSCMFileSystem(owner, (SpaceSCM) scm, rev, build);
+    }
+
+    @Override
+    public SCMFileSystem build(@NonNull SCMSource source, @NonNull SCMHead head, @CheckForNull SCMRevision rev) {
+        if (!(source instanceof SpaceSCMSource))
+            return null;
+
+        return SpaceSCMFileSystemKt.buildSpaceSCMFileSystem((SpaceSCMSource) source, head, rev);
+    }
+}
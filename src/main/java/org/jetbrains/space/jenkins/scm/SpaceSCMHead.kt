@@ -6,7 +6,6 @@ import jenkins.scm.api.mixin.ChangeRequestCheckoutStrategy
 import jenkins.scm.api.mixin.ChangeRequestSCMHead2
 import org.jetbrains.space.jenkins.trigger.TriggerCause
 import space.jetbrains.api.runtime.SpaceClient
-import space.jetbrains.api.runtime.types.GitCommitInfo
 import space.jetbrains.api.runtime.types.MergeRequestBranch
 
 /**
@@ -74,13 +73,13 @@ class SpaceSCMRevision(head: SpaceSCMHead, commitHash: String) : AbstractGitSCMS
 val REFS_HEADS_PREFIX: String = "refs/heads/"
 
 fun MergeRequestBranch.toSpaceBranchSCMHead(
-    commits: Map<String, GitCommitInfo>,
+    commitDates: Map<String, Long>,
     spaceClient: SpaceClient,
     source: SpaceSCMSource
 ) = SpaceBranchSCMHead(
     name = displayName,
     latestCommit = ref,
-    lastUpdated = commits[ref]?.commitDate ?: -1,
+    lastUpdated = commitDates[ref] ?: -1,
     triggerCause = TriggerCause.BranchPush(
         head = displayName,
         commitId = ref,
@@ -1,27 +1,25 @@
 package org.jetbrains.space.jenkins.scm
 
-import jenkins.scm.api.SCMFile
 import jenkins.scm.api.SCMHead
 import jenkins.scm.api.SCMProbe
 import jenkins.scm.api.SCMProbeStat
 import kotlinx.coroutines.runBlocking
 import space.jetbrains.api.runtime.SpaceClient
-import space.jetbrains.api.runtime.resources.projects
-import space.jetbrains.api.runtime.types.GitEntryType
-import space.jetbrains.api.runtime.types.ProjectIdentifier
+import java.io.Closeable
 
 /**
  * Performs a file path check for a given head (branch or merge request) within a SpaceCode git repository
  * to determine whether this head should result in a Jenkins job creation in the multibranch project.
+ * When the probe holds its own lease of the shared SpaceCode API client, the lease is released on [close].
  *
  * @see <a href="https://github.com/jenkinsci/scm-api-plugin/blob/master/docs/implementation.adoc">SCM API implementation guide</a>
  */
 class SpaceSCMProbe(
     val head: SCMHead,
     val spaceApiClient: SpaceClient,
-    val spaceProjectIdentifier: ProjectIdentifier,
+    val spaceProjectKey: String,
     val spaceRepository: String,
-    val ownsSpaceApiClient: Boolean
+    private val apiClientLease: Closeable? = null
 ) : SCMProbe() {
     override fun name() = head.name
 
@@ -30,33 +28,17 @@ class SpaceSCMProbe(
 
     override fun stat(path: String): SCMProbeStat {
         return runBlocking {
-            val files = spaceApiClient.projects.repositories.files(
-                spaceProjectIdentifier,
+            val files = spaceApiClient.listRepositoryFiles(
+                spaceProjectKey,
                 spaceRepository,
                 (head as? SpaceSCMHead)?.latestCommit ?: head.name,
                 path
             )
-            when {
-                files.isEmpty() ->
-                    SCMProbeStat.fromType(SCMFile.Type.NONEXISTENT)
-                files.size == 1 && files[0].path == path ->
-                    SCMProbeStat.fromType(when (files[0].type) {
-                        GitEntryType.EXE_FILE, GitEntryType.FILE ->
-                            SCMFile.Type.REGULAR_FILE
-                        GitEntryType.DIR ->
-                            SCMFile.Type.DIRECTORY
-                        GitEntryType.GIT_LINK, GitEntryType.SYM_LINK ->
-                            SCMFile.Type.LINK
-                    })
-                else ->
-                    SCMProbeStat.fromType(SCMFile.Type.DIRECTORY)
-            }
+            files.map { it.toRepositoryEntry() }.toSCMFileType(path).let { SCMProbeStat.fromType(it) }
         }
     }
 
     override fun close() {
-        if (ownsSpaceApiClient) {
-            spaceApiClient.close()
-        }
+        apiClientLease?.close()
     }
 }
\ No newline at end of file
@@ -14,18 +14,22 @@ import jenkins.scm.api.trait.SCMSourceContext;
 import jenkins.scm.api.trait.SCMSourceTrait;
 import jenkins.scm.api.trait.SCMSourceTraitDescriptor;
 import jenkins.scm.impl.form.NamedArrayList;
+import jenkins.util.SystemProperties;
 import org.jenkinsci.Symbol;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.space.jenkins.config.*;
+import org.jetbrains.space.jenkins.trigger.SpaceWebhookTriggerDefinition;
 import org.jetbrains.space.jenkins.trigger.SpaceWebhookTriggerKt;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
-import space.jetbrains.api.runtime.SpaceClient;
-import space.jetbrains.api.runtime.types.ProjectIdentifier;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implements JetBrains SpaceCode branch source for multibranch projects.
@@ -57,11 +61,26 @@ public class SpaceSCMSource extends SCMSource {
     private String mergeRequestSourceBranchSpec = "";
     private String mergeRequestTargetBranchSpec = "";
 
+    private String pathSpec = "";
+
     private String spaceWebhookId;
 
+    private boolean abortSupersededBuilds;
+
+    private boolean allowSafeMerge;
+
     @NonNull
     private List<SCMSourceTrait> traits;
 
+    private transient volatile Map<String, Long> commitDatesCache;
+
+    private transient volatile SpaceWebhookTriggerDefinition webhookDefinition;
+
+    /**
+     * Webhook definition that the SpaceCode webhook has been last reconciled with, and the time of that reconciliation
+     */
+    private transient volatile SpaceWebhookTriggerDefinition reconciledWebhookDefinition;
+    private transient volatile long webhookReconciledAt;
 
     public String getSpaceConnectionId() {
         return spaceConnectionId;
@@ -92,6 +111,7 @@ public class SpaceSCMSource extends SCMSource {
     @DataBoundSetter
     public void setType(SpaceSCMSourceType type) {
         this.type = type;
+        this.webhookDefinition = null;
     }
 
     public String getBranchSpec() {
@@ -101,6 +121,7 @@ public class SpaceSCMSource extends SCMSource {
     @DataBoundSetter
     public void setBranchSpec(String branchSpec) {
         this.branchSpec = branchSpec;
+        this.webhookDefinition = null;
     }
 
     public String getMergeRequestTitleRegex() {
@@ -110,6 +131,7 @@ public class SpaceSCMSource extends SCMSource {
     @DataBoundSetter
     public void setMergeRequestTitleRegex(String mergeRequestTitleRegex) {
         this.mergeRequestTitleRegex = mergeRequestTitleRegex;
+        this.webhookDefinition = null;
     }
 
     public String getMergeRequestSourceBranchSpec() {
@@ -119,6 +141,7 @@ public class SpaceSCMSource extends SCMSource {
     @DataBoundSetter
     public void setMergeRequestSourceBranchSpec(String mergeRequestSourceBranchSpec) {
         this.mergeRequestSourceBranchSpec = mergeRequestSourceBranchSpec;
+        this.webhookDefinition = null;
     }
 
     public String getMergeRequestTargetBranchSpec() {
@@ -128,6 +151,35 @@ public class SpaceSCMSource extends SCMSource {
     @DataBoundSetter
     public void setMergeRequestTargetBranchSpec(String mergeRequestTargetBranchSpec) {
         this.mergeRequestTargetBranchSpec = mergeRequestTargetBranchSpec;
+        this.webhookDefinition = null;
+    }
+
+    public String getPathSpec() {
+        return pathSpec;
+    }
+
+    @DataBoundSetter
+    public void setPathSpec(String pathSpec) {
+        this.pathSpec = pathSpec;
+        this.webhookDefinition = null;
+    }
+
+    public boolean isAbortSupersededBuilds() {
+        return abortSupersededBuilds;
+    }
+
+    @DataBoundSetter
+    public void setAbortSupersededBuilds(boolean abortSupersededBuilds) {
+        this.abortSupersededBuilds = abortSupersededBuilds;
+    }
+
+    public boolean isAllowSafeMerge() {
+        return allowSafeMerge;
+    }
+
+    @DataBoundSetter
+    public void setAllowSafeMerge(boolean allowSafeMerge) {
+        this.allowSafeMerge = allowSafeMerge;
     }
 
     @Override
@@ -136,7 +188,42 @@ public class SpaceSCMSource extends SCMSource {
     }
 
     /**
-     * Creates a probe object that should check whether Jenkins job should be created for a given revision by the multibranch project branch source
+     * Commit dates for the heads seen by the previous discoveries, keyed by commit id.
+     * Commit date never changes for a given commit, so only the commits that appeared since the last scan have to be fetched from SpaceCode.
+     */
+    @NonNull
+    public Map<String, Long> getCommitDatesCache() {
+        Map<String, Long> cache = commitDatesCache;
+        if (cache == null) {
+            synchronized (this) {
+                cache = commitDatesCache;
+                if (cache == null) {
+                    cache = new ConcurrentHashMap<>();
+                    commitDatesCache = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the definition of SpaceCode webhook and heads filters for the current branch source configuration.
+     * The definition is created once and reused until the branch source configuration changes.
+     */
+    @NonNull
+    public SpaceWebhookTriggerDefinition getWebhookDefinition() {
+        SpaceWebhookTriggerDefinition result = webhookDefinition;
+        if (result == null) {
+            result = SpaceSCMSourceKt.createWebhookDefinition(this);
+            webhookDefinition = result;
+        }
+        return result;
+    }
+
+    /**
+     * Creates a probe object that should check whether Jenkins job should be created for a given revision by the multibranch project branch source.
+     * Probes lease the SpaceCode API client shared by the project-level connection instead of creating one for every probed head,
+     * the lease is released when the probe is closed.
      */
     @Override
     protected @NotNull SCMProbe createProbe(@NotNull SCMHead head, @CheckForNull SCMRevision revision) {
@@ -144,15 +231,15 @@ public class SpaceSCMSource extends SCMSource {
         if (owner == null)
             throw new RuntimeException("No owner multibranch project found for the branch source");
 
-        SpaceClient spaceClient = SpacePluginConfigurationKt.getSpaceApiClientForMultiBranchProject(
+        SharedApiClientLease lease = SpacePluginConfigurationKt.leaseSpaceApiClientForMultiBranchProject(
                 owner.getFullName(),
                 spaceConnectionId,
                 projectKey
         );
-        if (spaceClient == null)
+        if (lease == null)
             throw new RuntimeException("Space connection is not configured");
 
-        return new SpaceSCMProbe(head, spaceClient, new ProjectIdentifier.Key(projectKey), repository, true);
+        return new SpaceSCMProbe(head, lease.getClient(), projectKey, repository, lease);
     }
 
     /**
@@ -170,20 +257,41 @@ public class SpaceSCMSource extends SCMSource {
     @Override
     protected void retrieve(SCMSourceCriteria criteria, @NotNull SCMHeadObserver observer, SCMHeadEvent<?> event, @NotNull TaskListener listener) throws IOException, InterruptedException {
         SpaceSCMSourceKt.retrieve(this, criteria, observer, event, listener);
-        ensureSpaceWebhook();
+        if (isWebhookReconciliationDue(event)) {
+            ensureSpaceWebhook();
+        }
+    }
+
+    /**
+     * Reconciling the webhook takes several calls to SpaceCode, so it is not performed on every discovery.
+     * It is due when the webhook hasn't been created yet, when the branch source configuration has changed since the last reconciliation,
+     * or as a periodic health check on full indexing (not on the event-driven discovery, which by itself proves the webhook works).
+     */
+    private boolean isWebhookReconciliationDue(SCMHeadEvent<?> event) {
+        if (spaceWebhookId == null || !getWebhookDefinition().equals(reconciledWebhookDefinition))
+            return true;
+
+        return event == null && System.currentTimeMillis() - webhookReconciledAt > WEBHOOK_HEALTH_CHECK_INTERVAL_MILLIS;
     }
 
     /**
      * Ensures that a webhook is present and properly configured on the SpaceCode application for this branch source
-     * to listen to the events that potentiall affect the list of discovered heads
+     * to listen to the events that potentiall affect the list of discovered heads.
+     * Multibranch project is saved only if the webhook id has changed as a result.
      */
     public void ensureSpaceWebhook() throws IOException {
         SCMSourceOwner owner = getOwner();
         if (owner == null)
             throw new RuntimeException("No owner multibranch project found for the branch source");
 
-        this.spaceWebhookId = SpaceWebhookTriggerKt.ensureAndGetSpaceWebhookId(this);
-        owner.save();
+        SpaceWebhookTriggerDefinition definition = getWebhookDefinition();
+        String webhookId = SpaceWebhookTriggerKt.ensureAndGetSpaceWebhookId(this);
+        reconciledWebhookDefinition = definition;
+        webhookReconciledAt = System.currentTimeMillis();
+        if (!Objects.equals(webhookId, this.spaceWebhookId)) {
+            this.spaceWebhookId = webhookId;
+            owner.save();
+        }
     }
 
     @NotNull
@@ -216,4 +324,12 @@ public class SpaceSCMSource extends SCMSource {
             return result;
         }
     }
+
+    /**
+     * Interval of the periodic check that the SpaceCode webhook for a branch source is still in place and properly configured,
+     * can be overridden with the {@code org.jetbrains.space.jenkins.scm.SpaceSCMSource.webhookHealthCheckIntervalMinutes} system property.
+     */
+    private static final long WEBHOOK_HEALTH_CHECK_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(
+            SystemProperties.getLong(SpaceSCMSource.class.getName() + ".webhookHealthCheckIntervalMinutes", 24 * 60L)
+    );
 }
@@ -7,9 +7,8 @@ import jenkins.scm.api.*
 import jenkins.scm.api.mixin.ChangeRequestCheckoutStrategy
 import jenkins.scm.api.trait.SCMSourceContext
 import jenkins.scm.api.trait.SCMSourceRequest
-import kotlinx.coroutines.runBlocking
 import org.jetbrains.space.jenkins.config.SpacePluginConfiguration
-import org.jetbrains.space.jenkins.config.getSpaceApiClientForMultiBranchProject
+import org.jetbrains.space.jenkins.config.withSpaceApiClientForMultiBranchProject
 import org.jetbrains.space.jenkins.config.getOrgConnection
 import org.jetbrains.space.jenkins.listeners.mergeRequestFields
 import org.jetbrains.space.jenkins.trigger.SpaceWebhookTriggerDefinition
@@ -26,19 +25,21 @@ enum class SpaceSCMSourceType {
 }
 
 /**
- * Prepares input data for creating a webhook in SpaceCode for a given branch source of a multibranch project
+ * Prepares input data for creating a webhook in SpaceCode for a given branch source of a multibranch project.
+ * Use [SpaceSCMSource.getWebhookDefinition] to get the definition cached for the current branch source configuration.
  */
-fun SpaceSCMSource.getWebhookDefinition() =
+fun SpaceSCMSource.createWebhookDefinition() =
     when (type) {
         SpaceSCMSourceType.Branches ->
-            SpaceWebhookTriggerDefinition.Branches(branchSpec)
+            SpaceWebhookTriggerDefinition.Branches(branchSpec, pathSpec)
 
         SpaceSCMSourceType.MergeRequests ->
             SpaceWebhookTriggerDefinition.MergeRequests(
                 titleRegex = mergeRequestTitleRegex,
                 sourceBranchSpec = mergeRequestSourceBranchSpec,
                 targetBranchSpec = mergeRequestTargetBranchSpec,
-                isMergeRequestApprovalsRequired = false
+                isMergeRequestApprovalsRequired = false,
+                pathSpec = pathSpec
             )
     }
 
@@ -47,165 +48,185 @@ fun SpaceSCMSource.getWebhookDefinition() =
  */
 fun SpaceSCMSource.retrieve(criteria: SCMSourceCriteria?, observer: SCMHeadObserver, event: SCMHeadEvent<*>?, listener: TaskListener) {
     SpaceSCMSourceContext(criteria, observer).withTraits(traits.orEmpty()).newRequest(this, listener).use { request ->
-        getSpaceApiClientForMultiBranchProject(
+        withSpaceApiClientForMultiBranchProject(
             projectFullName = owner!!.fullName,
             spaceConnectionId = spaceConnectionId,
             projectKey = projectKey
-        )?.use { spaceClient ->
-            fun doProcess(scmHead: SCMHead, scmRevision: SCMRevision) {
+        ) { spaceClient ->
+            fun doProcess(scmHead: SCMHead, scmRevision: SCMRevision) =
                 request.process(
                     scmHead,
                     scmRevision,
                     { head, _ ->
-                        SpaceSCMProbe(
-                            head, spaceClient, ProjectIdentifier.Key(projectKey), repository,
-                            ownsSpaceApiClient = false
-                        )
+                        SpaceSCMProbe(head, spaceClient, projectKey, repository)
                     },
                     { head, revision, isMatch ->
                         listener.logger.println("Head: ${head.name}, ref: ${revision?.head}, isMatch: $isMatch")
                     }
                 )
-            }
 
-            runBlocking {
-                when (type) {
-                    SpaceSCMSourceType.Branches -> {
-                        if (event is SpaceBranchSCMHeadEvent) {
-                            event.heads(this@retrieve).filterKeys { it is SpaceBranchSCMHead }.forEach {
-                                doProcess(it.key, it.value)
-                            }
-                            return@runBlocking
-                        }
+            when {
+                type == SpaceSCMSourceType.Branches && event is SpaceBranchSCMHeadEvent ->
+                    event.heads(this).filterKeys { it is SpaceBranchSCMHead }.forEach {
+                        doProcess(it.key, it.value)
+                    }
 
-                        var batch = spaceClient.projects.repositories.getHeads(
-                            ProjectIdentifier.Key(projectKey),
-                            repository,
-                            branchSpec.takeUnless { it.isNullOrBlank() || it == "*" }?.split(',').orEmpty(),
-                            batchInfo = BatchInfo(null, BATCH_SIZE)
-                        )
-                        while (batch.data.isNotEmpty()) {
-                            val commits = fetchCommits(spaceClient, batch.data.map { it.ref })
-                            batch.data
-                                .map {
-                                    SpaceBranchSCMHead(
-                                        name = it.head.removePrefix(REFS_HEADS_PREFIX),
-                                        latestCommit = it.ref,
-                                        lastUpdated = commits[it.ref]?.commitDate ?: -1L,
-                                        triggerCause = TriggerCause.BranchPush(
-                                            head = it.head,
-                                            commitId = it.ref,
-                                            url = buildSpaceCommitUrl(
-                                                spaceClient.server.serverUrl,
-                                                projectKey,
-                                                repository,
-                                                it.ref
-                                            )
-                                        )
-                                    )
-                                }
-                                .forEach { scmHead ->
-                                    doProcess(scmHead, SpaceSCMRevision(scmHead, scmHead.latestCommit))
-                                }
+                type == SpaceSCMSourceType.MergeRequests && event is SpaceMergeRequestSCMHeadEvent ->
+                    event.heads(this).filterKeys { it is SpaceMergeRequestSCMHead }.forEach {
+                        doProcess(it.key, it.value)
+                    }
 
-                            batch = spaceClient.projects.repositories.getHeads(
-                                ProjectIdentifier.Key(projectKey),
-                                repository,
-                                branchSpec.takeUnless { it.isNullOrBlank() || it == "*" }?.split(',').orEmpty(),
-                                batchInfo = BatchInfo(batch.next, BATCH_SIZE)
-                            ) {
-                                head()
-                                ref()
-                            }
-                        }
+                else ->
+                    SpaceMultiSourceIndexer.discoverHeads(this, listener) { head, revision ->
+                        doProcess(head, revision)
                     }
+            }
+        }
+    }
+}
 
-                    SpaceSCMSourceType.MergeRequests -> {
-                        if (event is SpaceMergeRequestSCMHeadEvent) {
-                            event.heads(this@retrieve).filterKeys { it is SpaceMergeRequestSCMHead }.forEach {
-                                doProcess(it.key, it.value)
-                            }
-                            return@runBlocking
-                        }
+/**
+ * Lists all the heads (branches or merge requests) in SpaceCode that match the branch source settings,
+ * passing each of them to [onHead] as soon as its page has been fetched.
+ *
+ * This is the part of the discovery that only talks to SpaceCode and does not interact with the SCM API,
+ * so it can safely run concurrently for several branch sources of the same multibranch project (see [SpaceMultiSourceIndexer]).
+ * Cancelling the coroutine stops paging right away.
+ *
+ * @param log Receives the messages explaining why particular heads have been filtered out
+ */
+suspend fun SpaceSCMSource.discoverHeads(
+    spaceClient: SpaceClient,
+    log: suspend (String) -> Unit,
+    onHead: suspend (SpaceSCMHead, SpaceSCMRevision) -> Unit
+) {
+    val seenCommits = mutableSetOf<String>()
 
-                        var batch = spaceClient.projects.codeReviews.getAllCodeReviews(
-                            ProjectIdentifier.Key(projectKey),
-                            repository = repository,
-                            state = CodeReviewStateFilter.Opened,
-                            type = ReviewType.MergeRequest,
-                            batchInfo = BatchInfo(null, BATCH_SIZE)
-                        ) {
-                            review(mergeRequestFields)
-                        }
-                        val titleRegex = mergeRequestTitleRegex.takeUnless { it.isNullOrBlank() }?.let { Regex(it) }
-                        while (batch.data.isNotEmpty()) {
-                            val mergeRequests = batch.data.map { it.review as MergeRequestRecord }.filter { review ->
-                                val branchPair = review.branchPairs.first()
-                                if (titleRegex != null && !titleRegex.matches(review.title)) {
-                                    listener.logger.println("Head: ${branchPair.sourceBranchInfo?.head}, ref: ${branchPair.sourceBranchInfo?.ref}, isMatch: false (title regex)")
-                                    return@filter false
-                                }
+    when (type) {
+        SpaceSCMSourceType.Branches -> {
+            var batch = spaceClient.projects.repositories.getHeads(
+                ProjectIdentifier.Key(projectKey),
+                repository,
+                branchSpec.takeUnless { it.isNullOrBlank() || it == "*" }?.split(',').orEmpty(),
+                batchInfo = BatchInfo(null, BATCH_SIZE)
+            ) {
+                head()
+                ref()
+            }
+            while (batch.data.isNotEmpty()) {
+                val commitDates = fetchCommitDates(spaceClient, batch.data.map { it.ref })
+                seenCommits.addAll(commitDates.keys)
+                batch.data.forEach {
+                    val scmHead = SpaceBranchSCMHead(
+                        name = it.head.removePrefix(REFS_HEADS_PREFIX),
+                        latestCommit = it.ref,
+                        lastUpdated = commitDates[it.ref] ?: -1L,
+                        triggerCause = TriggerCause.BranchPush(
+                            head = it.head,
+                            commitId = it.ref,
+                            url = buildSpaceCommitUrl(
+                                spaceClient.server.serverUrl,
+                                projectKey,
+                                repository,
+                                it.ref
+                            )
+                        )
+                    )
+                    onHead(scmHead, SpaceSCMRevision(scmHead, scmHead.latestCommit))
+                }
 
-                                if (!mergeRequestSourceBranchSpec.isNullOrBlank() && !isMatch(
-                                        branchPair.sourceBranchInfo?.head,
-                                        mergeRequestSourceBranchSpec
-                                    )
-                                ) {
-                                    listener.logger.println("Head: ${branchPair.sourceBranchInfo?.head}, ref: ${branchPair.sourceBranchInfo?.ref}, isMatch: false (source branch spec)")
-                                    return@filter false
-                                }
+                batch = spaceClient.projects.repositories.getHeads(
+                    ProjectIdentifier.Key(projectKey),
+                    repository,
+                    branchSpec.takeUnless { it.isNullOrBlank() || it == "*" }?.split(',').orEmpty(),
+                    batchInfo = BatchInfo(batch.next, BATCH_SIZE)
+                ) {
+                    head()
+                    ref()
+                }
+            }
+        }
 
-                                if (!mergeRequestTargetBranchSpec.isNullOrBlank() && !isMatch(
-                                        branchPair.targetBranchInfo?.head,
-                                        mergeRequestTargetBranchSpec
-                                    )
-                                ) {
-                                    listener.logger.println("Head: ${branchPair.sourceBranchInfo?.head}, ref: ${branchPair.sourceBranchInfo?.ref}, isMatch: false (target branch spec, ${branchPair.targetBranchInfo?.head})")
-                                    return@filter false
-                                }
+        SpaceSCMSourceType.MergeRequests -> {
+            // SpaceCode API filters merge requests by project, repository, state and type on the server side;
+            // title and branch filters are not supported by the API, so those are applied to the minimal set of fields requested below
+            // before any further requests (commit dates) are made for the merge request
+            var batch = spaceClient.projects.codeReviews.getAllCodeReviews(
+                ProjectIdentifier.Key(projectKey),
+                repository = repository,
+                state = CodeReviewStateFilter.Opened,
+                type = ReviewType.MergeRequest,
+                batchInfo = BatchInfo(null, BATCH_SIZE)
+            ) {
+                review(mergeRequestFields)
+            }
+            val definition = webhookDefinition as SpaceWebhookTriggerDefinition.MergeRequests
+            val titleRegex = definition.compiledTitleRegex
+            while (batch.data.isNotEmpty()) {
+                val mergeRequests = batch.data.mapNotNull { it.review as? MergeRequestRecord }.filter { review ->
+                    val branchPair = review.branchPairs.firstOrNull()
+                    if (branchPair?.sourceBranchInfo == null || branchPair.targetBranchInfo == null) {
+                        log("Merge request ${review.number}, isMatch: false (no source or target branch)")
+                        return@filter false
+                    }
 
-                                true
-                            }
+                    if (titleRegex != null && !titleRegex.matches(review.title)) {
+                        log("Head: ${branchPair.sourceBranchInfo?.head}, ref: ${branchPair.sourceBranchInfo?.ref}, isMatch: false (title regex)")
+                        return@filter false
+                    }
 
-                            val commitIds = mergeRequests
-                                .flatMap { it.branchPairs }
-                                .flatMap { listOfNotNull(it.targetBranchInfo?.ref, it.sourceBranchInfo?.ref) }
-                            val commits = fetchCommits(spaceClient, commitIds)
-                            mergeRequests.forEach { review ->
-                                val branchPair = review.branchPairs.first()
-                                val target = branchPair.targetBranchInfo!!.toSpaceBranchSCMHead(
-                                    commits,
-                                    spaceClient,
-                                    this@retrieve
-                                )
-                                val mergeRequestHead = SpaceMergeRequestSCMHead(
-                                    mergeRequestId = review.id,
-                                    sourceBranchName = branchPair.sourceBranchInfo!!.displayName,
-                                    latestCommit = branchPair.sourceBranchInfo!!.ref,
-                                    lastUpdated = commits[branchPair.sourceBranchInfo!!.ref]?.commitDate ?: -1,
-                                    target = target,
-                                    checkoutStrategy = ChangeRequestCheckoutStrategy.HEAD,
-                                    triggerCause = TriggerCause.fromMergeRequest(review, spaceClient.server.serverUrl)
-                                )
-                                doProcess(
-                                    mergeRequestHead,
-                                    SpaceSCMRevision(mergeRequestHead, branchPair.sourceBranchInfo!!.ref)
-                                )
-                            }
+                    if (definition.sourceBranchMatcher?.matchesHead(branchPair.sourceBranchInfo?.head) == false) {
+                        log("Head: ${branchPair.sourceBranchInfo?.head}, ref: ${branchPair.sourceBranchInfo?.ref}, isMatch: false (source branch spec)")
+                        return@filter false
+                    }
 
-                            batch = spaceClient.projects.codeReviews.getAllCodeReviews(
-                                ProjectIdentifier.Key(projectKey),
-                                repository = repository,
-                                state = CodeReviewStateFilter.Opened,
-                                type = ReviewType.MergeRequest,
-                                batchInfo = BatchInfo(batch.next, BATCH_SIZE)
-                            )
-                        }
+                    if (definition.targetBranchMatcher?.matchesHead(branchPair.targetBranchInfo?.head) == false) {
+                        log("Head: ${branchPair.sourceBranchInfo?.head}, ref: ${branchPair.sourceBranchInfo?.ref}, isMatch: false (target branch spec, ${branchPair.targetBranchInfo?.head})")
+                        return@filter false
                     }
+
+                    true
+                }
+
+                val commitIds = mergeRequests
+                    .flatMap { it.branchPairs }
+                    .flatMap { listOfNotNull(it.targetBranchInfo?.ref, it.sourceBranchInfo?.ref) }
+                val commitDates = fetchCommitDates(spaceClient, commitIds)
+                seenCommits.addAll(commitDates.keys)
+                mergeRequests.forEach { review ->
+                    val branchPair = review.branchPairs.first()
+                    val target = branchPair.targetBranchInfo!!.toSpaceBranchSCMHead(
+                        commitDates,
+                        spaceClient,
+                        this
+                    )
+                    val mergeRequestHead = SpaceMergeRequestSCMHead(
+                        mergeRequestId = review.id,
+                        sourceBranchName = branchPair.sourceBranchInfo!!.displayName,
+                        latestCommit = branchPair.sourceBranchInfo!!.ref,
+                        lastUpdated = commitDates[branchPair.sourceBranchInfo!!.ref] ?: -1,
+                        target = target,
+                        checkoutStrategy = ChangeRequestCheckoutStrategy.HEAD,
+                        triggerCause = TriggerCause.fromMergeRequest(review, spaceClient.server.serverUrl)
+                    )
+                    onHead(mergeRequestHead, SpaceSCMRevision(mergeRequestHead, branchPair.sourceBranchInfo!!.ref))
+                }
+
+                batch = spaceClient.projects.codeReviews.getAllCodeReviews(
+                    ProjectIdentifier.Key(projectKey),
+                    repository = repository,
+                    state = CodeReviewStateFilter.Opened,
+                    type = ReviewType.MergeRequest,
+                    batchInfo = BatchInfo(batch.next, BATCH_SIZE)
+                ) {
+                    review(mergeRequestFields)
                 }
             }
         }
     }
+
+    // only reached when all the heads have been listed, so the dates of the commits that are still referenced are never dropped
+    commitDatesCache.keys.retainAll(seenCommits)
 }
 
 class SpaceSCMSourceContext(criteria: SCMSourceCriteria?, observer: SCMHeadObserver)
@@ -236,10 +257,21 @@ fun SpaceSCMSource.retrieveActions(head: SCMHead): List<Action> {
     }
 }
 
-private fun isMatch(head: String?, branchSpec: String): Boolean {
-    if (head == null)
-        return false
-    return BranchPattern.matchesPattern(branchSpec.split(","), isRegex = false, head)
+private fun PatternBuilder.Matcher.matchesHead(head: String?) =
+    head != null && matches(head)
+
+/**
+ * Fetches commit dates for the given commit ids, taking the ones seen by the previous discoveries from the branch source cache.
+ * Only the commits that haven't been seen yet result in a request to SpaceCode,
+ * so repeated scans of a repository with mostly unchanged heads do not fetch commits at all.
+ */
+suspend fun SpaceSCMSource.fetchCommitDates(spaceClient: SpaceClient, ids: List<String>): Map<String, Long> {
+    val cache = commitDatesCache
+    val missing = ids.filterNot { cache.containsKey(it) }.distinct()
+    if (missing.isNotEmpty()) {
+        fetchCommits(spaceClient, missing).values.forEach { cache[it.id] = it.commitDate }
+    }
+    return ids.mapNotNull { id -> cache[id]?.let { id to it } }.toMap()
 }
 
 suspend fun SpaceSCMSource.fetchCommits(spaceClient: SpaceClient, ids: List<String>) =
@@ -0,0 +1,77 @@
+package org.jetbrains.space.jenkins.scm
+
+import hudson.security.ACL
+import jenkins.model.Jenkins
+import jenkins.scm.api.SCMSourceOwner
+import org.jetbrains.space.jenkins.config.getOrgConnection
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Identifies a SpaceCode git repository that branch sources and events are routed by.
+ */
+data class SpaceRepositoryRoute(val spaceUrl: String, val projectKey: String, val repository: String) {
+    companion object {
+        fun of(spaceUrl: String, projectKey: String, repository: String) =
+            SpaceRepositoryRoute(spaceUrl.trimEnd('/'), projectKey, repository)
+    }
+}
+
+/**
+ * Returns SpaceCode url, project and repository this branch source discovers heads in,
+ * or null if the SpaceCode connection of the branch source does not exist anymore.
+ */
+fun SpaceSCMSource.getRoute() =
+    getOrgConnection(spaceConnectionId)?.let { SpaceRepositoryRoute.of(it.baseUrl, projectKey, repository) }
+
+/**
+ * Index of all the SpaceCode branch sources configured in Jenkins multibranch projects, grouped by the SpaceCode repository they point to.
+ *
+ * Incoming SpaceCode events are fanned out to all the branch sources in Jenkins by the SCM API.
+ * The index allows to find the interested branch sources without walking through all the Jenkins items for every event.
+ * It is built lazily and dropped whenever a Jenkins item is created, updated, saved or removed.
+ */
+object SpaceSCMSourceIndex {
+
+    @Volatile
+    private var routes: Map<SpaceRepositoryRoute, List<SpaceSCMSource>>? = null
+
+    private val generation = AtomicLong()
+
+    /**
+     * Returns the branch sources that discover heads in the given SpaceCode repository.
+     */
+    fun getSources(route: SpaceRepositoryRoute): List<SpaceSCMSource> =
+        getRoutes()[route].orEmpty()
+
+    /**
+     * Returns all SpaceCode branch sources configured in Jenkins.
+     */
+    fun getAllSources(): List<SpaceSCMSource> =
+        getRoutes().values.flatten()
+
+    /**
+     * Drops the index so that it gets rebuilt on the next access.
+     */
+    fun invalidate() {
+        generation.incrementAndGet()
+        routes = null
+    }
+
+    private fun getRoutes(): Map<SpaceRepositoryRoute, List<SpaceSCMSource>> {
+        routes?.let { return it }
+
+        val buildGeneration = generation.get()
+        val built = ACL.as2(ACL.SYSTEM2).use {
+            Jenkins.get().getAllItems(SCMSourceOwner::class.java)
+                .flatMap { it.scmSources }
+                .filterIsInstance<SpaceSCMSource>()
+                .mapNotNull { source -> source.getRoute()?.let { it to source } }
+                .groupBy({ it.first }, { it.second })
+        }
+        // do not store the index if it has been invalidated while being built, it might be missing the latest changes
+        if (generation.get() == buildGeneration) {
+            routes = built
+        }
+        return built
+    }
+}
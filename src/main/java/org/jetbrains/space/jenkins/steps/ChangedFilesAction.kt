@@ -0,0 +1,11 @@
+package org.jetbrains.space.jenkins.steps
+
+import hudson.model.InvisibleAction
+import java.io.Serializable
+
+/**
+ * An implementation of [hudson.model.Action] that is stored in build run metadata
+ * to keep the list of files changed by the push or merge request that has triggered the build,
+ * so that the [ChangedFilesStep] fetches it from SpaceCode at most once per build, even across Jenkins restarts.
+ */
+class ChangedFilesAction(val changedFiles: List<String>) : InvisibleAction(), Serializable
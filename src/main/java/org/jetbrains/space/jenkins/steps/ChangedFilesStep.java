@@ -0,0 +1,84 @@
+package org.jetbrains.space.jenkins.steps;
+
+import edu.umd.cs.findbugs.annotations.Nullable;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.jetbrains.annotations.NotNull;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * <p>Pipeline step for getting the list of files changed by the git push or merge request that has triggered the build.</p>
+ * <p>
+ *     The list is taken from SpaceCode, so that pipelines can skip unaffected modules of a monorepo
+ *     without running {@code git diff} against the target branch, which requires deep git history on the agent.
+ *     The list is fetched once per build and stored with it.
+ * </p>
+ * <p>
+ *     Returns the list of changed paths relative to the repository root,
+ *     or null if the changes cannot be determined (for example, for the first push to a new branch),
+ *     in which case the pipeline should consider all the files changed.
+ *     Optionally writes the list to a file in the workspace, one path per line.
+ * </p>
+ *
+ * <p>Sample usage in the pipeline script:</p>
+ * <pre>{@code
+ *     script {
+ *          def changedFiles = getChangedFilesFromSpace(manifestFile: 'changed-files.txt')
+ *          if (changedFiles == null || changedFiles.any { it.startsWith('services/billing/') }) {
+ *              sh './gradlew :services:billing:build'
+ *          }
+ *     }
+ * }</pre>
+ */
+public class ChangedFilesStep extends Step {
+
+    private @Nullable String manifestFile;
+
+    @DataBoundConstructor
+    public ChangedFilesStep() {
+    }
+
+    @Override
+    public StepExecution start(StepContext context) {
+        return ChangedFilesStepExecution.Companion.start(this, context);
+    }
+
+    public @Nullable String getManifestFile() {
+        return manifestFile;
+    }
+
+    @DataBoundSetter
+    public void setManifestFile(@Nullable String manifestFile) {
+        this.manifestFile = (manifestFile != null && !manifestFile.isBlank()) ? manifestFile : null;
+    }
+
+    @SuppressWarnings("unused")
+    @Extension
+    public static class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public @NotNull String getDisplayName() {
+            return "Get files changed by the triggering push or merge request from JetBrains SpaceCode";
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "getChangedFilesFromSpace";
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return new HashSet<>(Arrays.asList(Run.class, TaskListener.class));
+        }
+    }
+}
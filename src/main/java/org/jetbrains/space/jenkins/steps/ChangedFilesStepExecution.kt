@@ -0,0 +1,150 @@
+package org.jetbrains.space.jenkins.steps
+
+import hudson.FilePath
+import hudson.model.CauseAction
+import hudson.model.Run
+import hudson.model.TaskListener
+import jenkins.branch.MultiBranchProject
+import jenkins.plugins.git.AbstractGitSCMSource
+import jenkins.scm.api.SCMRevisionAction
+import jenkins.scm.api.SCMSource
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.launch
+import org.jenkinsci.plugins.workflow.multibranch.BranchJobProperty
+import org.jenkinsci.plugins.workflow.steps.StepContext
+import org.jenkinsci.plugins.workflow.steps.StepExecution
+import org.jetbrains.space.jenkins.*
+import org.jetbrains.space.jenkins.config.getProjectConnection
+import org.jetbrains.space.jenkins.config.withSharedApiClient
+import org.jetbrains.space.jenkins.scm.SpaceSCMHead
+import org.jetbrains.space.jenkins.trigger.SpaceChangedFiles
+import org.jetbrains.space.jenkins.trigger.SpaceWebhookTriggerCause
+import org.jetbrains.space.jenkins.trigger.TriggerCause
+import kotlin.coroutines.EmptyCoroutineContext
+
+/**
+ * Drives the execution of the [ChangedFilesStep], which is responsible for getting the list of files
+ * changed by the push or merge request that has triggered the build.
+ * The list is taken from the [ChangedFilesAction] of the build if it has already been fetched,
+ * or from SpaceCode through the [SpaceChangedFiles] cache otherwise.
+ */
+class ChangedFilesStepExecution(
+    val jenkinsItemFullName: String,
+    val spaceConnectionId: String,
+    val spaceProjectKey: String?,
+    val manifestFile: String?,
+    context: StepContext
+) : StepExecution(context) {
+
+    companion object {
+        private final val serialVersionUID = 1L
+
+        /**
+         * Obtain SpaceCode connection from the build trigger or git checkout settings and start the step execution.
+         */
+        fun start(step: ChangedFilesStep, context: StepContext) : StepExecution {
+            val build = context.get(Run::class.java)
+                ?: return FailureStepExecution("StepContext does not contain the Run instance", context)
+
+            val multiProjectScmSource = build.getParent().getMultiBranchSpaceScmSource()
+            val spaceConnectionId = multiProjectScmSource?.spaceConnectionId
+                ?: build.getParent().getSpaceConnectionId()
+                ?: return FailureStepExecution("SpaceCode connection not found", context)
+
+            if (step.manifestFile != null && context.get(FilePath::class.java) == null)
+                return FailureStepExecution("Writing changed files to the workspace requires the step to be run within a node block", context)
+
+            val jenkinsItem = (build.getParent().getParent() as? MultiBranchProject<*, *>) ?: build.getParent()
+
+            return ChangedFilesStepExecution(
+                jenkinsItemFullName = jenkinsItem.fullName,
+                spaceConnectionId = spaceConnectionId,
+                spaceProjectKey = multiProjectScmSource?.projectKey,
+                manifestFile = step.manifestFile,
+                context = context
+            )
+        }
+    }
+
+    @Transient
+    private val coroutineScope = CoroutineScope(EmptyCoroutineContext)
+
+    override fun start(): Boolean {
+        val build = context.get(Run::class.java)
+        val listener = context.get(TaskListener::class.java)
+        coroutineScope.launch {
+            try {
+                val changedFiles = build.getAction(ChangedFilesAction::class.java)?.changedFiles
+                    ?: fetchChangedFiles(build, listener)?.also { build.addOrReplaceAction(ChangedFilesAction(it)) }
+
+                if (changedFiles == null) {
+                    listener.logger.println("Files changed by the push or merge request that has triggered the build cannot be determined")
+                }
+
+                manifestFile?.let { path ->
+                    val file = context.get(FilePath::class.java).child(path)
+                    // missing manifest means unknown changes, while an empty one means no changes at all
+                    if (changedFiles != null)
+                        file.write(changedFiles.joinToString("\n"), Charsets.UTF_8.name())
+                    else
+                        file.delete()
+                }
+
+                context.onSuccess(changedFiles)
+            } catch (ex: Throwable) {
+                context.onFailure(ex)
+            }
+        }
+        return false
+    }
+
+    /**
+     * Fetches the changed files from SpaceCode, reporting the failure to the build log and returning null (unknown changes) if fetching fails.
+     */
+    private suspend fun fetchChangedFiles(build: Run<*, *>, listener: TaskListener): List<String>? {
+        val (projectKey, repository, triggerCause) = build.getTriggeringChanges() ?: return null
+        val (spaceConnection, spaceUrl) = getProjectConnection(jenkinsItemFullName, spaceConnectionId, spaceProjectKey)
+        return try {
+            spaceConnection.withSharedApiClient(spaceUrl) { spaceClient ->
+                SpaceChangedFiles.forTriggerCause(spaceClient, projectKey, repository, triggerCause)
+            }
+        } catch (ex: CancellationException) {
+            throw ex
+        } catch (ex: Exception) {
+            listener.logger.println("Failed to fetch the files changed by the push or merge request from SpaceCode - $ex")
+            null
+        }
+    }
+}
+
+/**
+ * Returns SpaceCode project key, repository name and the branch push or merge request that has triggered the build,
+ * taken either from the SpaceCode trigger or from the branch source of the multibranch project.
+ *
+ * For a branch of a multibranch project, the changes are taken relative to the commit the branch pointed to before the push
+ * if the build is for the commit of the push reported by the SpaceCode webhook.
+ * Otherwise (for example, for the builds triggered by branch indexing) the changes are taken relative to the revision
+ * of the previous build of the branch, and are unknown for the first build.
+ */
+private fun Run<*, *>.getTriggeringChanges(): Triple<String, String, TriggerCause>? {
+    getAction(CauseAction::class.java)?.findCause(SpaceWebhookTriggerCause::class.java)?.let {
+        return Triple(it.projectKey, it.repositoryName, it.cause)
+    }
+
+    val source = getParent().getMultiBranchSpaceScmSource() ?: return null
+    val head = getParent().getProperty(BranchJobProperty::class.java)?.branch?.head as? SpaceSCMHead ?: return null
+    val triggerCause = head.triggerCause ?: return null
+    if (triggerCause !is TriggerCause.BranchPush)
+        return Triple(source.projectKey, source.repository, triggerCause)
+
+    val commitId = getRevisionHash(source) ?: triggerCause.commitId
+    val oldCommitId = triggerCause.oldCommitId?.takeIf { triggerCause.commitId == commitId }
+        ?: generateSequence(getPreviousBuild()) { it.getPreviousBuild() }
+            .firstNotNullOfOrNull { it.getRevisionHash(source) }
+            ?.takeUnless { it == commitId }
+    return Triple(source.projectKey, source.repository, triggerCause.copy(commitId = commitId, oldCommitId = oldCommitId))
+}
+
+private fun Run<*, *>.getRevisionHash(source: SCMSource) =
+    (SCMRevisionAction.getRevision(source, this) as? AbstractGitSCMSource.SCMRevisionImpl)?.hash
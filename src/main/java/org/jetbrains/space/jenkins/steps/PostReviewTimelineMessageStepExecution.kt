@@ -3,27 +3,24 @@ package org.jetbrains.space.jenkins.steps
 import hudson.ExtensionList
 import hudson.model.CauseAction
 import hudson.model.Run
+import hudson.model.TaskListener
 import jenkins.branch.MultiBranchProject
-import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.launch
 import org.jenkinsci.plugins.workflow.multibranch.BranchJobProperty
 import org.jenkinsci.plugins.workflow.steps.StepContext
 import org.jenkinsci.plugins.workflow.steps.StepExecution
 import org.jetbrains.space.jenkins.*
 import org.jetbrains.space.jenkins.config.SpacePluginConfiguration
-import org.jetbrains.space.jenkins.config.getApiClient
+import org.jetbrains.space.jenkins.config.leaseSharedApiClient
 import org.jetbrains.space.jenkins.config.getProjectConnection
 import org.jetbrains.space.jenkins.scm.SpaceSCMHead
 import org.jetbrains.space.jenkins.trigger.SpaceWebhookTriggerCause
 import org.jetbrains.space.jenkins.trigger.TriggerCause
-import space.jetbrains.api.runtime.resources.chats
-import space.jetbrains.api.runtime.resources.projects
-import space.jetbrains.api.runtime.types.*
-import kotlin.coroutines.EmptyCoroutineContext
 
 /**
  * Drives the execution of the [PostReviewTimelineMessageStep], which is responsible for posting a message
  * to the merge request timeline in SpaceCode on behalf of Jenkins integration.
+ * The message is queued to the [ReviewTimelineOutbox] and the step completes right away, without waiting for the delivery;
+ * delivery failures are reported to the build log.
  */
 class PostReviewTimelineMessageStepExecution(
     val jenkinsItemFullName: String,
@@ -71,35 +68,19 @@ class PostReviewTimelineMessageStepExecution(
         }
     }
 
-    @Transient
-    private val coroutineScope = CoroutineScope(EmptyCoroutineContext)
-
     override fun start(): Boolean {
         val (spaceConnection, spaceUrl) = getProjectConnection(jenkinsItemFullName, spaceConnectionId, spaceProjectKey)
+        val logger = context.get(TaskListener::class.java)?.logger
 
-        val projectKey = spaceConnection.projectKey
-        coroutineScope.launch {
-            try {
-                spaceConnection.getApiClient(spaceUrl).use { spaceApiClient ->
-                    val review = spaceApiClient.projects.codeReviews.getCodeReview(
-                        ProjectIdentifier.Key(projectKey),
-                        ReviewIdentifier.Number(mergeRequestNumber)
-                    ) {
-                        feedChannelId()
-                    } as? MergeRequestRecord ?: error("Cannot find merge request $mergeRequestNumber in SpaceCode project $projectKey")
-
-                    review.feedChannelId?.let { channelId ->
-                        spaceApiClient.chats.messages.sendMessage(
-                            ChannelIdentifier.Id(channelId),
-                            ChatMessage.Text(messageText)
-                        )
-                    } ?: error("Merge request $mergeRequestNumber in SpaceCode project $projectKey does not have associated feed channel")
-                }
-                context.onSuccess(null)
-            } catch (ex: Throwable) {
-                context.onFailure(ex)
-            }
+        ReviewTimelineOutbox.post(
+            spaceConnection.leaseSharedApiClient(spaceUrl),
+            spaceConnection.projectKey,
+            mergeRequestNumber,
+            messageText
+        ) { ex ->
+            logger?.println("Failed to post message to the timeline of merge request $mergeRequestNumber in SpaceCode: ${ex.message ?: ex.javaClass.simpleName}")
         }
-        return false
+        context.onSuccess(null)
+        return true
     }
 }
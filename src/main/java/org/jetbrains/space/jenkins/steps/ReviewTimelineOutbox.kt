@@ -0,0 +1,120 @@
+package org.jetbrains.space.jenkins.steps
+
+import kotlinx.coroutines.*
+import org.jetbrains.space.jenkins.config.SharedApiClientLease
+import org.jetbrains.space.jenkins.trigger.MergeRequestCache
+import space.jetbrains.api.runtime.SpaceClient
+import space.jetbrains.api.runtime.resources.chats
+import space.jetbrains.api.runtime.resources.projects
+import space.jetbrains.api.runtime.types.*
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * Delivers messages posted to merge request timelines by the [PostReviewTimelineMessageStep].
+ *
+ * Pipelines that report progress from many parallel stages tend to post bursts of small messages to the same merge request.
+ * Messages are sent in the background, in the order they were posted: a message is sent right away if nothing is being sent
+ * to the same merge request at the moment, while the messages posted during an ongoing send are combined into a single chat message
+ * and sent as soon as that send completes.
+ * The id of the merge request feed channel is looked up once and remembered.
+ */
+object ReviewTimelineOutbox {
+
+    private data class ReviewKey(val spaceUrl: String, val projectKey: String, val mergeRequestNumber: Int)
+
+    private class PendingMessage(val text: String, val apiClientLease: SharedApiClientLease, val onFailure: (Throwable) -> Unit)
+
+    private class Outbox {
+        val pending = mutableListOf<PendingMessage>()
+    }
+
+    private val outboxes = HashMap<ReviewKey, Outbox>()
+
+    private val feedChannelIds = object : LinkedHashMap<ReviewKey, String>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<ReviewKey, String>) =
+            size > MAX_FEED_CHANNEL_IDS
+    }
+
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    /**
+     * Queues the message for the merge request timeline and returns without waiting for its delivery.
+     * The outbox takes over the lease of the SpaceCode API client and releases it once the message has been sent or has failed to send.
+     *
+     * @param onFailure Called in background if the message cannot be delivered,
+     *  for example because the merge request or its feed channel cannot be found
+     */
+    fun post(apiClientLease: SharedApiClientLease, projectKey: String, mergeRequestNumber: Int, messageText: String, onFailure: (Throwable) -> Unit) {
+        val key = ReviewKey(apiClientLease.client.server.serverUrl.trimEnd('/'), projectKey, mergeRequestNumber)
+        val message = PendingMessage(messageText, apiClientLease, onFailure)
+        synchronized(outboxes) {
+            val existing = outboxes[key]
+            if (existing != null) {
+                // a send to this merge request is in flight, the message will be sent right after it together with others posted meanwhile
+                existing.pending.add(message)
+            } else {
+                val outbox = Outbox().apply { pending.add(message) }
+                outboxes[key] = outbox
+                scope.launch { drain(key, outbox) }
+            }
+        }
+    }
+
+    /**
+     * Sends the pending messages of the outbox one batch after another until no more messages are posted to it.
+     * Only one drain runs for a merge request at a time, so that messages are never reordered.
+     */
+    private suspend fun drain(key: ReviewKey, outbox: Outbox) {
+        while (true) {
+            val messages = synchronized(outboxes) {
+                val messages = outbox.pending.toList()
+                outbox.pending.clear()
+                if (messages.isEmpty())
+                    outboxes.remove(key, outbox)
+                messages
+            }
+            if (messages.isEmpty())
+                return
+
+            send(key, messages)
+        }
+    }
+
+    private suspend fun send(key: ReviewKey, messages: List<PendingMessage>) {
+        try {
+            val spaceClient = messages.first().apiClientLease.client
+            val channelId = getFeedChannelId(spaceClient, key)
+            spaceClient.chats.messages.sendMessage(
+                ChannelIdentifier.Id(channelId),
+                ChatMessage.Text(messages.joinToString("\n") { it.text })
+            )
+        } catch (ex: Throwable) {
+            LOGGER.log(Level.WARNING, "Failed to post message to the timeline of merge request ${key.mergeRequestNumber} in SpaceCode project ${key.projectKey}", ex)
+            messages.forEach { it.onFailure(ex) }
+        } finally {
+            messages.forEach { it.apiClientLease.close() }
+        }
+    }
+
+    private suspend fun getFeedChannelId(spaceClient: SpaceClient, key: ReviewKey): String {
+        synchronized(feedChannelIds) { feedChannelIds[key] }?.let { return it }
+
+        val channelId = MergeRequestCache.getFeedChannelId(key.spaceUrl, key.projectKey, key.mergeRequestNumber)
+            ?: (spaceClient.projects.codeReviews.getCodeReview(
+                ProjectIdentifier.Key(key.projectKey),
+                ReviewIdentifier.Number(key.mergeRequestNumber)
+            ) {
+                feedChannelId()
+            } as? MergeRequestRecord ?: error("Cannot find merge request ${key.mergeRequestNumber} in SpaceCode project ${key.projectKey}"))
+                .feedChannelId
+            ?: error("Merge request ${key.mergeRequestNumber} in SpaceCode project ${key.projectKey} does not have associated feed channel")
+
+        synchronized(feedChannelIds) { feedChannelIds[key] = channelId }
+        return channelId
+    }
+
+    private const val MAX_FEED_CHANNEL_IDS = 1000
+}
+
+private val LOGGER = Logger.getLogger(ReviewTimelineOutbox::class.java.name)
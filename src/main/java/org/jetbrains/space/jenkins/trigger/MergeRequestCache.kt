@@ -0,0 +1,102 @@
+package org.jetbrains.space.jenkins.trigger
+
+import jenkins.util.SystemProperties
+import space.jetbrains.api.runtime.types.MergeRequestRecord
+
+/**
+ * Merge request records recently received from SpaceCode, either in webhook payloads or as a result of API calls,
+ * keyed by SpaceCode url and review id or project key and review number.
+ *
+ * Builds for the merge request specified by the build parameter and posting messages to the merge request timeline
+ * need merge request data. Code review webhooks already carry it, so those paths take the record from this cache
+ * and call SpaceCode API only if it is missing.
+ * Safe merge start always fetches the record from SpaceCode, since a stale record must not end up in the safe merge build,
+ * and puts the fresh record into the cache for the checkout of that build.
+ * Entries are replaced on every code review webhook, removed when the review is deleted and expire after a while anyway,
+ * since not all changes to a merge request result in a webhook for Jenkins.
+ * Expiration time and maximum number of entries are configured with the
+ * `org.jetbrains.space.jenkins.trigger.MergeRequestCache.expirationMinutes` (10 by default)
+ * and `org.jetbrains.space.jenkins.trigger.MergeRequestCache.maxEntries` (1000 by default) system properties.
+ */
+object MergeRequestCache {
+
+    private data class IdKey(val spaceUrl: String, val reviewId: String)
+
+    private data class NumberKey(val spaceUrl: String, val projectKey: String, val number: Int)
+
+    private class Entry(val mergeRequest: MergeRequestRecord, val numberKey: NumberKey, val feedChannelId: String?, val cachedAt: Long) {
+        fun isExpired() =
+            System.currentTimeMillis() - cachedAt > expirationMillis
+    }
+
+    private val expirationMillis =
+        SystemProperties.getLong(MergeRequestCache::class.java.name + ".expirationMinutes", 10L) * 60 * 1000
+
+    private val maxEntries =
+        SystemProperties.getInteger(MergeRequestCache::class.java.name + ".maxEntries", 1000)
+
+    private val idsByNumber = HashMap<NumberKey, IdKey>()
+
+    private val entries = object : LinkedHashMap<IdKey, Entry>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<IdKey, Entry>) =
+            (size > maxEntries).also { evicted ->
+                if (evicted) idsByNumber.remove(eldest.value.numberKey, eldest.key)
+            }
+    }
+
+    /**
+     * Stores or replaces the merge request record.
+     * The record must contain at least the fields listed in [org.jetbrains.space.jenkins.listeners.mergeRequestFields].
+     *
+     * @param feedChannelId Id of the chat channel with the merge request timeline, if it has been requested along with the record.
+     *  Webhook payloads carry it, while the records fetched from SpaceCode API do not, so null keeps the channel id already known for the merge request.
+     */
+    fun put(spaceUrl: String, mergeRequest: MergeRequestRecord, feedChannelId: String?) {
+        val idKey = IdKey(spaceUrl.trimEnd('/'), mergeRequest.id)
+        val numberKey = NumberKey(idKey.spaceUrl, mergeRequest.project.key, mergeRequest.number)
+        synchronized(entries) {
+            val knownFeedChannelId = feedChannelId ?: entries[idKey]?.feedChannelId
+            entries[idKey] = Entry(mergeRequest, numberKey, knownFeedChannelId, System.currentTimeMillis())
+            idsByNumber[numberKey] = idKey
+        }
+    }
+
+    /**
+     * Forgets the merge request, for example after it has been deleted in SpaceCode.
+     */
+    fun remove(spaceUrl: String, reviewId: String) {
+        synchronized(entries) {
+            entries.remove(IdKey(spaceUrl.trimEnd('/'), reviewId))
+                ?.let { idsByNumber.remove(it.numberKey) }
+        }
+    }
+
+    fun getById(spaceUrl: String, reviewId: String): MergeRequestRecord? =
+        getEntry(IdKey(spaceUrl.trimEnd('/'), reviewId))?.mergeRequest
+
+    fun getByNumber(spaceUrl: String, projectKey: String, number: Int): MergeRequestRecord? =
+        getEntryByNumber(spaceUrl, projectKey, number)?.mergeRequest
+
+    /**
+     * Returns the id of the chat channel with the timeline of the merge request, if it is known.
+     */
+    fun getFeedChannelId(spaceUrl: String, projectKey: String, number: Int): String? =
+        getEntryByNumber(spaceUrl, projectKey, number)?.feedChannelId
+
+    private fun getEntryByNumber(spaceUrl: String, projectKey: String, number: Int): Entry? {
+        val idKey = synchronized(entries) { idsByNumber[NumberKey(spaceUrl.trimEnd('/'), projectKey, number)] }
+            ?: return null
+        return getEntry(idKey)
+    }
+
+    private fun getEntry(idKey: IdKey): Entry? =
+        synchronized(entries) {
+            val entry = entries[idKey] ?: return null
+            if (entry.isExpired()) {
+                entries.remove(idKey)
+                idsByNumber.remove(entry.numberKey, idKey)
+                return null
+            }
+            entry
+        }
+}
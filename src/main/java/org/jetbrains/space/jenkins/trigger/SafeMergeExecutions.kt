@@ -0,0 +1,100 @@
+package org.jetbrains.space.jenkins.trigger
+
+import hudson.model.Queue
+import hudson.model.Run
+import java.lang.ref.WeakReference
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+
+/**
+ * In-memory registry of the safe merge builds started by SpaceCode, keyed by the build identifiers communicated to SpaceCode.
+ *
+ * SpaceCode polls Jenkins for the safe merge status frequently while the safe merge is in progress.
+ * Without the registry, every poll would look up the job by its full name and then load the build by number (possibly from disk).
+ * The registry is populated when safe merge is started and kept up to date by the queue and run listeners,
+ * so that the status requests for started builds are served with map lookups only.
+ * Queue items are not kept in the registry, since Jenkins replaces them with new instances as they move through the queue;
+ * the callers look them up in the Jenkins queue by id instead.
+ *
+ * Builds are referenced weakly, so that the registry never prevents them from being garbage collected;
+ * the callers fall back to looking them up in Jenkins if the registry has no entry (for example, after Jenkins restart).
+ */
+object SafeMergeExecutions {
+
+    /**
+     * Registers the safe merge queue item right after it has been scheduled or when it enters the queue.
+     */
+    fun onQueued(item: Queue.Item) {
+        if (!item.causes.hasSafeMergeCause())
+            return
+
+        evictStale()
+        executionsByQueueId.computeIfAbsent(item.id) { SafeMergeExecution() }
+    }
+
+    /**
+     * Marks the registered safe merge as completed when its queue item gets cancelled.
+     */
+    fun onLeft(item: Queue.LeftItem) {
+        evictStale()
+        if (item.isCancelled)
+            executionsByQueueId[item.id]?.completedAt = System.currentTimeMillis()
+    }
+
+    /**
+     * Attaches the build to the registered safe merge queue item it has been started from.
+     */
+    fun onStarted(build: Run<*, *>) {
+        val execution = executionsByQueueId[build.queueId] ?: return
+        execution.run = WeakReference(build)
+        executionsByBuild[BuildKey(build.parent.fullName, build.number)] = execution
+    }
+
+    fun onCompleted(build: Run<*, *>) {
+        evictStale()
+        executionsByQueueId[build.queueId]?.completedAt = System.currentTimeMillis()
+    }
+
+    /**
+     * Returns the build started from the given safe merge queue item, or null if it hasn't started yet or is not registered.
+     */
+    fun getRunByQueueId(queueId: Long): Run<*, *>? =
+        executionsByQueueId[queueId]?.run?.get()
+
+    /**
+     * Returns the safe merge build by the full name of its job and build number, or null if it is not registered.
+     */
+    fun getRun(jobFullName: String, buildNumber: Int): Run<*, *>? =
+        executionsByBuild[BuildKey(jobFullName, buildNumber)]?.run?.get()
+
+    /**
+     * Drops the executions that have completed long enough ago for SpaceCode to stop polling them,
+     * along with the executions whose builds have been garbage collected.
+     * Executions that are still in the queue have no build yet and are kept until they leave the queue.
+     */
+    private fun evictStale() {
+        val now = System.currentTimeMillis()
+        val isStale = { execution: SafeMergeExecution ->
+            execution.completedAt?.let { now - it > RETENTION_MILLIS } == true
+                    || execution.run?.let { it.get() == null } == true
+        }
+        executionsByQueueId.values.removeIf(isStale)
+        executionsByBuild.values.removeIf(isStale)
+    }
+
+    private class SafeMergeExecution {
+        @Volatile
+        var run: WeakReference<Run<*, *>>? = null
+
+        @Volatile
+        var completedAt: Long? = null
+    }
+
+    private data class BuildKey(val jobFullName: String, val buildNumber: Int)
+
+    private val executionsByQueueId = ConcurrentHashMap<Long, SafeMergeExecution>()
+
+    private val executionsByBuild = ConcurrentHashMap<BuildKey, SafeMergeExecution>()
+
+    private val RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1)
+}
@@ -0,0 +1,208 @@
+package org.jetbrains.space.jenkins.trigger
+
+import io.ktor.client.request.*
+import io.ktor.client.statement.*
+import io.ktor.http.*
+import jenkins.util.SystemProperties
+import net.sf.json.JSONException
+import net.sf.json.JSONObject
+import space.jetbrains.api.runtime.BatchInfo
+import space.jetbrains.api.runtime.SpaceClient
+import space.jetbrains.api.runtime.resources.projects
+import space.jetbrains.api.runtime.types.ProjectIdentifier
+import space.jetbrains.api.runtime.types.ReviewIdentifier
+import java.io.IOException
+
+/**
+ * Lists of files changed by a git push or a merge request, fetched from SpaceCode and cached by commit.
+ *
+ * Several job triggers subscribed to the same webhook match the same event against their path filters,
+ * and the builds they trigger ask for the same changes again with the [org.jetbrains.space.jenkins.steps.ChangedFilesStep],
+ * so every list is fetched only once; the list for a given commit range or merge request head commit never changes.
+ * The number of cached lists is limited by the
+ * `org.jetbrains.space.jenkins.trigger.SpaceChangedFiles.maxEntries` system property (200 by default).
+ */
+object SpaceChangedFiles {
+
+    private data class Key(val spaceUrl: String, val projectKey: String, val subject: String, val commit: String)
+
+    private val maxEntries = SystemProperties.getInteger(SpaceChangedFiles::class.java.name + ".maxEntries", 200)
+
+    private val entries = object : LinkedHashMap<Key, List<String>>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Key, List<String>>) =
+            size > maxEntries
+    }
+
+    /**
+     * Returns the paths of files changed by the push of [newCommit] on top of [oldCommit],
+     * or null if the push has no previous commit to compare with (for example, for a newly created branch).
+     *
+     * @throws Exception if the changes cannot be fetched from SpaceCode
+     */
+    suspend fun forBranchPush(spaceClient: SpaceClient, projectKey: String, repository: String, oldCommit: String?, newCommit: String): List<String>? {
+        if (oldCommit.isNullOrBlank() || oldCommit.all { it == '0' })
+            return null
+
+        return getOrFetch(Key(spaceClient.server.serverUrl.trimEnd('/'), projectKey, "$repository:$oldCommit", newCommit)) {
+            spaceClient.fetchCommitRangeChanges(projectKey, repository, oldCommit, newCommit)
+        }
+    }
+
+    /**
+     * Returns the paths of files changed in the merge request as of its source branch [headCommit],
+     * or null if the head commit is unknown.
+     *
+     * @throws Exception if the changes cannot be fetched from SpaceCode
+     */
+    suspend fun forMergeRequest(spaceClient: SpaceClient, projectKey: String, reviewId: String, headCommit: String?): List<String>? {
+        headCommit ?: return null
+        return getOrFetch(Key(spaceClient.server.serverUrl.trimEnd('/'), projectKey, "review:$reviewId", headCommit)) {
+            spaceClient.fetchMergeRequestChanges(projectKey, reviewId)
+        }
+    }
+
+    /**
+     * Returns the paths of files changed by the branch push or merge request that has triggered the build,
+     * or null if there is nothing to compare the changes with.
+     *
+     * @throws Exception if the changes cannot be fetched from SpaceCode
+     */
+    suspend fun forTriggerCause(spaceClient: SpaceClient, projectKey: String, repository: String, cause: TriggerCause): List<String>? =
+        when (cause) {
+            is TriggerCause.MergeRequest ->
+                forMergeRequest(spaceClient, projectKey, cause.id, cause.sourceBranchRef)
+            is TriggerCause.BranchPush ->
+                forBranchPush(spaceClient, projectKey, repository, cause.oldCommitId, cause.commitId)
+        }
+
+    /**
+     * Takes the list from cache or fetches it. Failures are not cached and are passed to the caller,
+     * so that it decides how to treat the unknown changes instead of mistaking them for an empty list.
+     */
+    private suspend fun getOrFetch(key: Key, fetch: suspend () -> List<String>): List<String> {
+        synchronized(entries) { entries[key] }?.let { return it }
+
+        val files = fetch()
+        synchronized(entries) { entries[key] = files }
+        return files
+    }
+}
+
+private suspend fun SpaceClient.fetchMergeRequestChanges(projectKey: String, reviewId: String): List<String> {
+    val paths = linkedSetOf<String>()
+    var batch = projects.codeReviews.getTheModifiedFilesInCodeReview(
+        ProjectIdentifier.Key(projectKey),
+        ReviewIdentifier.Id(reviewId),
+        batchInfo = BatchInfo(null, BATCH_SIZE)
+    )
+    while (batch.data.isNotEmpty()) {
+        batch.data.forEach { file ->
+            file.change.old?.path?.let { paths.add(it) }
+            file.change.new?.path?.let { paths.add(it) }
+        }
+        batch = projects.codeReviews.getTheModifiedFilesInCodeReview(
+            ProjectIdentifier.Key(projectKey),
+            ReviewIdentifier.Id(reviewId),
+            batchInfo = BatchInfo(batch.next, BATCH_SIZE)
+        )
+    }
+    return paths.toList()
+}
+
+/**
+ * Fetches the files changed between two commits of the SpaceCode git repository from the `commit-changes` endpoint of SpaceCode HTTP API,
+ * because the commit range comparison is not exposed by the SpaceCode SDK.
+ * The endpoint is called with the HTTP client and access token of the SDK client, and its response is parsed with [parseCommitChangesBatch].
+ */
+private suspend fun SpaceClient.fetchCommitRangeChanges(projectKey: String, repository: String, oldCommit: String, newCommit: String): List<String> {
+    val url = URLBuilder(server.serverUrl).appendPathSegments(
+        "api", "http", "projects", "key:$projectKey", "repositories", repository, "commit-changes"
+    ).buildString()
+    val description = "changes between $oldCommit and $newCommit in SpaceCode repository $projectKey/$repository"
+
+    return collectCommitRangeChanges(description) { skip ->
+        val response = ktorClient.get(url) {
+            parameter("baseCommit", oldCommit)
+            parameter("headCommit", newCommit)
+            parameter("\$top", BATCH_SIZE)
+            skip?.let { parameter("\$skip", it) }
+            auth.token(ktorClient, appInstance).accessToken.takeIf { it.isNotEmpty() }?.let {
+                header(HttpHeaders.Authorization, "Bearer $it")
+            }
+        }
+        if (!response.status.isSuccess())
+            throw IOException("Failed to fetch $description: ${response.status}")
+
+        parseCommitChangesBatch(response.bodyAsText())
+    }
+}
+
+/**
+ * Fetches all the batches of changes with [fetchBatch], passing it the `$skip` cursor returned with the previous batch.
+ * Listing stops at an empty batch or when the cursor does not advance.
+ *
+ * @throws IOException if SpaceCode reports more changes than it has listed,
+ *  since a truncated listing would make path filters skip the builds for the changes that have not been listed
+ */
+internal suspend fun collectCommitRangeChanges(description: String, fetchBatch: suspend (skip: String?) -> CommitChangesBatch): List<String> {
+    val paths = linkedSetOf<String>()
+    var received = 0
+    var skip: String? = null
+    while (true) {
+        val batch = fetchBatch(skip)
+        received += batch.changesCount
+        paths.addAll(batch.paths)
+
+        val next = batch.next?.takeUnless { it == skip }
+        if (batch.changesCount == 0 || next == null) {
+            if (batch.totalCount != null && batch.totalCount > received)
+                throw IOException("SpaceCode returned $received of ${batch.totalCount} $description")
+            return paths.toList()
+        }
+        skip = next
+    }
+}
+
+/**
+ * Batch of changes returned by the `commit-changes` endpoint of SpaceCode HTTP API.
+ *
+ * @property paths Paths of the changed files, both before and after the change (for renamed or moved files)
+ * @property changesCount Number of changes in the batch, which can differ from the number of paths
+ * @property next Cursor to pass as `$skip` to get the next batch, or null if there is none
+ * @property totalCount Total number of changes between the commits, or null if SpaceCode has not reported it
+ */
+internal class CommitChangesBatch(val paths: List<String>, val changesCount: Int, val next: String?, val totalCount: Int?)
+
+/**
+ * Parses a response of the `commit-changes` endpoint of SpaceCode HTTP API, which has the same shape as other batch responses:
+ * `{"next": "...", "totalCount": N, "data": [{"old": {"path": "..."}, "new": {"path": "..."}}, ...]}`,
+ * where `old` is absent for added files and `new` is absent for deleted ones.
+ *
+ * @throws IOException if the response does not have the expected shape
+ */
+internal fun parseCommitChangesBatch(body: String): CommitChangesBatch {
+    val json = try {
+        JSONObject.fromObject(body)
+    } catch (ex: JSONException) {
+        throw IOException("Unexpected response from SpaceCode commit changes endpoint", ex)
+    }
+    val changes = json.optJSONArray("data")
+        ?: throw IOException("Unexpected response from SpaceCode commit changes endpoint, no \"data\" array found")
+
+    val paths = changes.map { change ->
+        (change as? JSONObject)
+            ?: throw IOException("Unexpected response from SpaceCode commit changes endpoint, change is not an object: $change")
+        listOf(change.optJSONObject("old"), change.optJSONObject("new"))
+            .mapNotNull { file -> file?.optString("path")?.takeUnless { it.isEmpty() } }
+            .ifEmpty { throw IOException("Unexpected response from SpaceCode commit changes endpoint, change without paths: $change") }
+    }.flatten()
+
+    return CommitChangesBatch(
+        paths = paths,
+        changesCount = changes.size,
+        next = json.optString("next").takeUnless { it.isEmpty() },
+        totalCount = json.optInt("totalCount", -1).takeIf { it >= 0 }
+    )
+}
+
+private const val BATCH_SIZE = 100
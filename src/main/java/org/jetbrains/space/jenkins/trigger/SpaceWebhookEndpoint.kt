@@ -1,19 +1,17 @@
 package org.jetbrains.space.jenkins.trigger
 
-import hudson.ExtensionList
 import hudson.model.CauseAction
-import hudson.model.Job
+import hudson.model.Queue
 import hudson.security.ACL
 import io.ktor.http.*
-import jenkins.model.Jenkins
 import jenkins.scm.api.SCMHeadEvent
-import jenkins.scm.api.SCMSourceOwner
 import jenkins.triggers.SCMTriggerItem
-import jenkins.triggers.TriggeredItem
+import kotlinx.coroutines.CancellationException
 import org.jetbrains.space.jenkins.SpacePayloadHandler
 import org.jetbrains.space.jenkins.*
-import org.jetbrains.space.jenkins.config.SpacePluginConfiguration
-import org.jetbrains.space.jenkins.config.SpaceProjectConnectionJobProperty
+import org.jetbrains.space.jenkins.config.SharedApiClientLease
+import org.jetbrains.space.jenkins.config.leaseSharedApiClient
+import org.jetbrains.space.jenkins.config.leaseSpaceApiClientForMultiBranchProject
 import org.jetbrains.space.jenkins.scm.*
 import space.jetbrains.api.ExperimentalSpaceSdkApi
 import space.jetbrains.api.runtime.helpers.ProcessingScope
@@ -39,35 +37,35 @@ suspend fun ProcessingScope.processWebhookCallback(payload: WebhookRequestPayloa
     }
 }
 
+/**
+ * Signals the authorization of SpaceCode application to the browser clients waiting for it
+ * and schedules the background re-registration of webhooks for the job triggers connected through this application.
+ */
 @OptIn(ExperimentalSpaceSdkApi::class)
-private suspend fun ProcessingScope.handleApplicationAuthorizedEvent(payload: WebhookRequestPayload) : SpaceHttpResponse {
+private fun handleApplicationAuthorizedEvent(payload: WebhookRequestPayload) : SpaceHttpResponse {
     val event = payload.payload as ApplicationAuthorizedWebhookEvent
     SpacePermissionsApproveListener.signal(event.application.id)
-    Jenkins.get().getAllItems(TriggeredItem::class.java)
-        .findBySpaceAppClientId(payload.clientId)
-        .forEach { job ->
-            if (job is TriggeredItem) {
-                try {
-                    job.triggers?.values?.filterIsInstance<SpaceWebhookTrigger>().orEmpty().forEach { trigger ->
-                        trigger.ensureSpaceWebhook()
-                    }
-                } catch (ex: Exception) {
-                    LOGGER.log(Level.WARNING, "Error while setting up webhook for job ${job.fullDisplayName}", ex)
-                }
-            }
-        }
+    SpaceWebhooksReRegistration.schedule(payload.clientId)
     return SpaceHttpResponse.RespondWithOk
 }
 
+/**
+ * Handles the webhook event that triggers builds or multibranch project heads discovery.
+ * A single SpaceCode webhook can be subscribed to by several job triggers.
+ * All of them are matched against the event in a single pass, and the resulting builds are scheduled under a single queue lock acquisition.
+ */
 @OptIn(ExperimentalSpaceSdkApi::class)
 private suspend fun ProcessingScope.handleBuildTriggerEvent(payload: WebhookRequestPayload): SpaceHttpResponse {
-    val allJobs = Jenkins.get().getAllItems(TriggeredItem::class.java)
-    val trigger = allJobs.findBySpaceWebhookId(payload.webhookId, appInstance.clientId)
+    payload.payload.updateMergeRequestCache(appInstance.spaceServer.serverUrl)
+    (payload.payload as? SRepoPushWebhookEvent)?.let {
+        SpaceRepositoryMirrors.onPush(appInstance.spaceServer.serverUrl, it.projectKey.key, it.repository)
+    }
 
-    if (trigger == null) {
-        val scmSource = Jenkins.get().getAllItems(SCMSourceOwner::class.java)
-            .flatMap { it.scmSources }
-            .filterIsInstance<SpaceSCMSource>()
+    val triggers = SpaceWebhookTriggerIndex.getTriggers(payload.webhookId)
+        .filter { it.job?.getSpaceClientId() == appInstance.clientId }
+
+    if (triggers.isEmpty()) {
+        val scmSource = SpaceSCMSourceIndex.getAllSources()
             .firstOrNull { it.spaceWebhookId == payload.webhookId }
         return if (scmSource != null) {
             when (val result = matchWebhookEvent(
@@ -75,7 +73,12 @@ private suspend fun ProcessingScope.handleBuildTriggerEvent(payload: WebhookRequ
                 spaceProjectKey = scmSource.projectKey,
                 spaceRepositoryName = scmSource.repository,
                 event = payload.payload,
-                ownerDisplayName = "branch source of the project \"${scmSource.owner?.fullDisplayName.orEmpty()}\""
+                ownerDisplayName = "branch source of the project \"${scmSource.owner?.fullDisplayName.orEmpty()}\"",
+                spaceClient = {
+                    scmSource.owner?.let {
+                        leaseSpaceApiClientForMultiBranchProject(it.fullName, scmSource.spaceConnectionId, scmSource.projectKey)
+                    }
+                }
             )) {
                 is WebhookEventResult.RunBuild -> {
                     SCMHeadEvent.fireNow(result.event)
@@ -96,64 +99,63 @@ private suspend fun ProcessingScope.handleBuildTriggerEvent(payload: WebhookRequ
         }
     }
 
-    val job = trigger.job
-    val triggerItem = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job)
-    if (triggerItem == null) {
-        LOGGER.info("Cannot trigger item of type ${job::class.qualifiedName}")
-        return SpaceHttpResponse.RespondWithCode(HttpStatusCode.BadRequest)
-    }
-
-    val (spaceConnection, _) = job.getProjectConnection()
-        ?: error("SpaceCode connection cannot be found for the triggered job")
-
-    // deep check of event properties and trigger conditions to ensure that build should be triggered
-    val result = matchWebhookEvent(
-        trigger = trigger.getDefinition(),
-        spaceProjectKey = spaceConnection.projectKey,
-        spaceRepositoryName = trigger.repositoryName,
-        event = payload.payload,
-        ownerDisplayName = "trigger of the \"${job.fullDisplayName}\""
-    )
-    return when (result) {
-        is WebhookEventResult.RunBuild -> {
-            val causeAction = CauseAction(result.cause)
-            triggerItem.scheduleBuild2(triggerItem.quietPeriod, causeAction)
-            SpaceHttpResponse.RespondWithOk
+    val results = triggers.mapNotNull { trigger ->
+        val job = trigger.job
+        val triggerItem = SCMTriggerItem.SCMTriggerItems.asSCMTriggerItem(job)
+        if (triggerItem == null) {
+            LOGGER.info("Cannot trigger item of type ${job::class.qualifiedName}")
+            return@mapNotNull null
         }
 
-        is WebhookEventResult.UnexpectedEvent -> {
-            trigger.ensureSpaceWebhook()
-            SpaceHttpResponse.RespondWithCode(HttpStatusCode.BadRequest)
-        }
+        val (spaceConnection, spaceUrl) = job.getProjectConnection()
+            ?: run {
+                LOGGER.warning("SpaceCode connection cannot be found for the triggered job \"${job.fullName}\"")
+                return@mapNotNull null
+            }
 
-        is WebhookEventResult.IgnoredEvent ->
-            SpaceHttpResponse.RespondWithCode(HttpStatusCode.Accepted)
+        // deep check of event properties and trigger conditions to ensure that build should be triggered
+        val result = matchWebhookEvent(
+            trigger = trigger.getDefinition(),
+            spaceProjectKey = spaceConnection.projectKey,
+            spaceRepositoryName = trigger.repositoryName,
+            event = payload.payload,
+            ownerDisplayName = "trigger of the \"${job.fullDisplayName}\"",
+            spaceClient = { spaceConnection.leaseSharedApiClient(spaceUrl) }
+        )
+        TriggerMatch(trigger, triggerItem, result)
     }
-}
 
-private fun List<TriggeredItem>.findBySpaceAppClientId(spaceClientId: String) =
-    filterIsInstance<Job<*, *>>()
-        .mapNotNull { job ->
-            val spaceProjectProperty = job.getProperty(SpaceProjectConnectionJobProperty::class.java)
-                ?: return@mapNotNull null
-            val rootConnection = ExtensionList.lookupSingleton(SpacePluginConfiguration::class.java)
-                .connections.firstOrNull { it.id == spaceProjectProperty.spaceConnectionId }
-                ?: return@mapNotNull null
-
-            val jobFullName = job.fullName
-            job.takeIf {
-                rootConnection.clientId == spaceClientId
-                        || rootConnection.projectConnectionsByJob?.get(jobFullName)?.clientId == spaceClientId
+    val builds = results.filter { it.result is WebhookEventResult.RunBuild }
+    if (builds.isNotEmpty()) {
+        Queue.withLock(Runnable {
+            builds.forEach { (_, triggerItem, result) ->
+                triggerItem.scheduleBuild2(triggerItem.quietPeriod, CauseAction((result as WebhookEventResult.RunBuild).cause))
             }
-        }
+        })
+    }
+
+    // webhooks are updated outside the queue lock because it requires calls to SpaceCode
+    val unexpected = results.filter { it.result is WebhookEventResult.UnexpectedEvent }
+    unexpected.forEach { it.trigger.ensureSpaceWebhook() }
 
-private fun List<TriggeredItem>.findBySpaceWebhookId(webhookId: String, spaceClientId: String) =
-    firstNotNullOfOrNull { job ->
-        job.takeIf { (it as? Job<*, *>)?.getSpaceClientId() == spaceClientId }
-            ?.triggers?.values
-            ?.filterIsInstance<SpaceWebhookTrigger>()
-            ?.firstOrNull { it.spaceWebhookId == webhookId }
+    return when {
+        builds.isNotEmpty() ->
+            SpaceHttpResponse.RespondWithOk
+        unexpected.isNotEmpty() || results.isEmpty() ->
+            SpaceHttpResponse.RespondWithCode(HttpStatusCode.BadRequest)
+        else ->
+            SpaceHttpResponse.RespondWithCode(HttpStatusCode.Accepted)
     }
+}
+
+/**
+ * Result of matching an incoming webhook event against one of the triggers subscribed to the webhook
+ */
+private data class TriggerMatch(
+    val trigger: SpaceWebhookTrigger,
+    val triggerItem: SCMTriggerItem,
+    val result: WebhookEventResult
+)
 
 /**
  * Represents the result of checking whether an incoming webhook callback
@@ -186,14 +188,18 @@ private sealed class WebhookEventResult {
  * or whether it matches any branch source in a multibranch sources and thus a child job must be triggered or list of heads should be updated.
  * This is a deep check of all the properties of the event and conditions of the trigger or branch source.
  * The initial matching of trigger or branch source to SpaceCode webhook by the means of comparing the ids has already been done before.
+ *
+ * Changed files are fetched with the [spaceClient] only if the trigger or branch source filters changes by path,
+ * and only after all the other conditions are satisfied. The lease of the shared API client is released right after fetching them.
  */
 @OptIn(ExperimentalSpaceSdkApi::class)
-private fun ProcessingScope.matchWebhookEvent(
+private suspend fun ProcessingScope.matchWebhookEvent(
     trigger: SpaceWebhookTriggerDefinition?,
     spaceProjectKey: String,
     spaceRepositoryName: String,
     event: WebhookEvent,
-    ownerDisplayName: String
+    ownerDisplayName: String,
+    spaceClient: () -> SharedApiClientLease?
 ): WebhookEventResult {
     return when (trigger) {
         is SpaceWebhookTriggerDefinition.Branches -> {
@@ -230,9 +236,23 @@ private fun ProcessingScope.matchWebhookEvent(
                         event.projectKey.key,
                         event.repository,
                         event.head
-                    )
+                    ),
+                    oldCommitId = event.oldCommitId
                 )
             )
+            val pathMatcher = trigger.pathMatcher
+            if (pathMatcher != null) {
+                val changedFiles = fetchChangedFilesForPathSpecs(ownerDisplayName) {
+                    spaceClient()?.use {
+                        SpaceChangedFiles.forBranchPush(it.client, spaceProjectKey, spaceRepositoryName, event.oldCommitId, event.newCommitId!!)
+                    }
+                }
+                if (!changedFiles.matchesAny(pathMatcher)) {
+                    LOGGER.info("Ignoring git push event for the $ownerDisplayName because none of the changed files match path specs")
+                    return WebhookEventResult.IgnoredEvent
+                }
+            }
+
             val scmHeadEvent = SpaceBranchSCMHeadEvent(event, appInstance.spaceServer.serverUrl)
 
             WebhookEventResult.RunBuild(cause, scmHeadEvent)
@@ -291,8 +311,8 @@ private fun ProcessingScope.matchWebhookEvent(
                 }
             }
 
-            if (!trigger.titleRegex.isNullOrBlank()) {
-                val regex = Regex(trigger.titleRegex)
+            val regex = trigger.compiledTitleRegex
+            if (regex != null) {
                 if (event is CodeReviewUpdatedWebhookEvent) {
                     if (!regex.matches(event.titleMod?.new.orEmpty())) {
                         LOGGER.info("Ignoring webhook for the $ownerDisplayName because new title does not match filter")
@@ -310,6 +330,19 @@ private fun ProcessingScope.matchWebhookEvent(
                 }
             }
 
+            val pathMatcher = trigger.pathMatcher
+            if (pathMatcher != null) {
+                val changedFiles = fetchChangedFilesForPathSpecs(ownerDisplayName) {
+                    spaceClient()?.use {
+                        SpaceChangedFiles.forMergeRequest(it.client, spaceProjectKey, mergeRequest.id, mergeRequest.branchPairs.firstOrNull()?.sourceBranchInfo?.ref)
+                    }
+                }
+                if (!changedFiles.matchesAny(pathMatcher)) {
+                    LOGGER.info("Ignoring webhook for the $ownerDisplayName because none of the files changed in merge request match path specs")
+                    return WebhookEventResult.IgnoredEvent
+                }
+            }
+
             WebhookEventResult.RunBuild(
                 SpaceWebhookTriggerCause.fromMergeRequest(mergeRequest, appInstance.spaceServer.serverUrl),
                 scmHeadEvent
@@ -321,6 +354,28 @@ private fun ProcessingScope.matchWebhookEvent(
     }
 }
 
+/**
+ * Fetches the changed files to match against the path specs of the trigger.
+ * Returns null (unknown changes) if fetching fails, logging that the path specs are not applied to the event then.
+ */
+private suspend fun fetchChangedFilesForPathSpecs(ownerDisplayName: String, fetch: suspend () -> List<String>?): List<String>? =
+    try {
+        fetch()
+    } catch (ex: CancellationException) {
+        throw ex
+    } catch (ex: Exception) {
+        LOGGER.log(Level.SEVERE, "Failed to fetch changed files from SpaceCode, path specs are not applied and the build is triggered for the $ownerDisplayName", ex)
+        null
+    }
+
+/**
+ * Checks whether any of the changed files matches the path specs.
+ * Unknown changes (null list) are considered matching, so that builds are never missed because the changes cannot be determined:
+ * no previous commit for a newly created branch or a failure to fetch the changes, which is logged by [fetchChangedFilesForPathSpecs].
+ */
+private fun List<String>?.matchesAny(pathMatcher: PatternBuilder.Matcher) =
+    this == null || any { pathMatcher.matches(it) }
+
 private fun CodeReviewWebhookEvent.isExpectedFor(trigger: SpaceWebhookTriggerDefinition.MergeRequests, ownerDisplayName: String): Boolean {
     if (meta?.method != "Created") {
         LOGGER.warning("Event meta is ${meta?.method}, expected 'Created' for the $ownerDisplayName")
@@ -363,4 +418,24 @@ private fun CodeReviewParticipantWebhookEvent.isExpectedFor(trigger: SpaceWebhoo
     return true
 }
 
+/**
+ * Keeps [MergeRequestCache] up to date with the merge request records carried by code review webhook events.
+ * Webhook payloads include the feed channel id of the review, since it is requested in the payload fields of the webhooks.
+ */
+private fun WebhookEvent.updateMergeRequestCache(spaceUrl: String) {
+    val (review, meta) = when (this) {
+        is CodeReviewWebhookEvent -> review to meta
+        is CodeReviewUpdatedWebhookEvent -> review to meta
+        is CodeReviewParticipantWebhookEvent -> review to meta
+        is CodeReviewCommitsUpdatedWebhookEvent -> review to meta
+        else -> return
+    }
+    val mergeRequest = review as? MergeRequestRecord ?: return
+    if (meta?.method == "Deleted") {
+        MergeRequestCache.remove(spaceUrl, mergeRequest.id)
+    } else {
+        MergeRequestCache.put(spaceUrl, mergeRequest, mergeRequest.feedChannelId)
+    }
+}
+
 private val LOGGER = Logger.getLogger(SpacePayloadHandler::class.java.name)
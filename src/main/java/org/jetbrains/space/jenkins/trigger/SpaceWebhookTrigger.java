@@ -6,6 +6,7 @@ import hudson.model.Job;
 import hudson.triggers.Trigger;
 import hudson.triggers.TriggerDescriptor;
 
+import java.util.Objects;
 import java.util.UUID;
 import jenkins.triggers.SCMTriggerItem;
 import org.jetbrains.annotations.NotNull;
@@ -43,6 +44,14 @@ public class SpaceWebhookTrigger extends Trigger<Job<?, ?>> {
     private String mergeRequestTitleRegex = "";
     private String mergeRequestSourceBranchSpec = "";
 
+    private String pathSpec = "";
+
+    private boolean pushSafeMergeStatus;
+
+    private boolean abortSupersededBuilds;
+
+    private transient volatile SpaceWebhookTriggerDefinition definition;
+
     public String getId() {
         return id;
     }
@@ -79,6 +88,7 @@ public class SpaceWebhookTrigger extends Trigger<Job<?, ?>> {
     @DataBoundSetter
     public void setTriggerType(SpaceWebhookTriggerType triggerType) {
         this.triggerType = triggerType;
+        this.definition = null;
     }
 
     public String getBranchSpec() {
@@ -88,6 +98,7 @@ public class SpaceWebhookTrigger extends Trigger<Job<?, ?>> {
     @DataBoundSetter
     public void setBranchSpec(String branchSpec) {
         this.branchSpec = branchSpec;
+        this.definition = null;
     }
 
     public boolean isMergeRequestApprovalsRequired() {
@@ -97,6 +108,7 @@ public class SpaceWebhookTrigger extends Trigger<Job<?, ?>> {
     @DataBoundSetter
     public void setMergeRequestApprovalsRequired(boolean mergeRequestApprovalsRequired) {
         this.mergeRequestApprovalsRequired = mergeRequestApprovalsRequired;
+        this.definition = null;
     }
 
     public String getMergeRequestTitleRegex() {
@@ -106,6 +118,7 @@ public class SpaceWebhookTrigger extends Trigger<Job<?, ?>> {
     @DataBoundSetter
     public void setMergeRequestTitleRegex(String mergeRequestTitleRegex) {
         this.mergeRequestTitleRegex = mergeRequestTitleRegex;
+        this.definition = null;
     }
 
     public String getMergeRequestSourceBranchSpec() {
@@ -115,6 +128,49 @@ public class SpaceWebhookTrigger extends Trigger<Job<?, ?>> {
     @DataBoundSetter
     public void setMergeRequestSourceBranchSpec(String mergeRequestSourceBranchSpec) {
         this.mergeRequestSourceBranchSpec = mergeRequestSourceBranchSpec;
+        this.definition = null;
+    }
+
+    public String getPathSpec() {
+        return pathSpec;
+    }
+
+    @DataBoundSetter
+    public void setPathSpec(String pathSpec) {
+        this.pathSpec = pathSpec;
+        this.definition = null;
+    }
+
+    /**
+     * Returns the definition of SpaceCode webhook and event filters for the current trigger configuration,
+     * or null if the trigger is used only for safe merge and doesn't need a webhook.
+     * The definition is created once and reused until the trigger configuration changes.
+     */
+    public SpaceWebhookTriggerDefinition getDefinition() {
+        SpaceWebhookTriggerDefinition result = definition;
+        if (result == null) {
+            result = SpaceWebhookTriggerKt.createDefinition(this);
+            definition = result;
+        }
+        return result;
+    }
+
+    public boolean isPushSafeMergeStatus() {
+        return pushSafeMergeStatus;
+    }
+
+    @DataBoundSetter
+    public void setPushSafeMergeStatus(boolean pushSafeMergeStatus) {
+        this.pushSafeMergeStatus = pushSafeMergeStatus;
+    }
+
+    public boolean isAbortSupersededBuilds() {
+        return abortSupersededBuilds;
+    }
+
+    @DataBoundSetter
+    public void setAbortSupersededBuilds(boolean abortSupersededBuilds) {
+        this.abortSupersededBuilds = abortSupersededBuilds;
     }
 
     @Override
@@ -134,7 +190,11 @@ public class SpaceWebhookTrigger extends Trigger<Job<?, ?>> {
      * <p>Handling of the incoming webhook event is handled by the {@link SpacePayloadHandler} class.</p>
      */
     public void ensureSpaceWebhook() {
-        this.spaceWebhookId = SpaceWebhookTriggerKt.ensureAndGetSpaceWebhookId(this);
+        String webhookId = SpaceWebhookTriggerKt.ensureAndGetSpaceWebhookId(this);
+        if (!Objects.equals(webhookId, this.spaceWebhookId)) {
+            this.spaceWebhookId = webhookId;
+            SpaceWebhookTriggerIndex.INSTANCE.invalidate();
+        }
     }
 
     @SuppressWarnings("unused")
@@ -8,7 +8,6 @@ import org.jetbrains.space.jenkins.*
 import org.jetbrains.space.jenkins.config.SpaceProjectConnection
 import org.jetbrains.space.jenkins.config.getApiClient
 import org.jetbrains.space.jenkins.scm.SpaceSCMSource
-import org.jetbrains.space.jenkins.scm.getWebhookDefinition
 import space.jetbrains.api.runtime.Option
 import space.jetbrains.api.runtime.SpaceClient
 import space.jetbrains.api.runtime.resources.applications
@@ -88,19 +87,21 @@ private fun SpaceWebhookTriggerDefinition?.ensureSpaceWebhook(
 }
 
 /**
- * Prepares input data for creating a webhook in SpaceCode for a given job trigger
+ * Prepares input data for creating a webhook in SpaceCode for a given job trigger.
+ * Use [SpaceWebhookTrigger.getDefinition] to get the definition cached for the current trigger configuration.
  */
-fun SpaceWebhookTrigger.getDefinition() =
+fun SpaceWebhookTrigger.createDefinition() =
     when (triggerType) {
         SpaceWebhookTriggerType.Branches ->
-            SpaceWebhookTriggerDefinition.Branches(branchSpec)
+            SpaceWebhookTriggerDefinition.Branches(branchSpec, pathSpec)
 
         SpaceWebhookTriggerType.MergeRequests ->
             SpaceWebhookTriggerDefinition.MergeRequests(
                 titleRegex = mergeRequestTitleRegex,
                 sourceBranchSpec = mergeRequestSourceBranchSpec,
                 targetBranchSpec = "",
-                isMergeRequestApprovalsRequired = isMergeRequestApprovalsRequired
+                isMergeRequestApprovalsRequired = isMergeRequestApprovalsRequired,
+                pathSpec = pathSpec
             )
 
         SpaceWebhookTriggerType.OnlySafeMerge ->
@@ -122,7 +123,7 @@ private suspend fun SpaceWebhookTriggerDefinition.createSubscription(projectKey:
                     authors = listOf(),
                     participants = listOf(),
                     branchSpec = splitBranchSpecs(sourceBranchSpec),
-                    pathSpec = listOf(),
+                    pathSpec = pathSpecLines,
                     titleRegex = titleRegex.orEmpty()
                 )),
                 eventTypeCodes = listOfNotNull(
@@ -142,7 +143,7 @@ private suspend fun SpaceWebhookTriggerDefinition.createSubscription(projectKey:
                         authors = emptyList(),
                         committers = emptyList(),
                         branchSpec = splitBranchSpecs(branchSpec),
-                        pathSpec = "",
+                        pathSpec = pathSpecLines.joinToString(";"),
                         messageRegex = ""
                     )
                 )),
@@ -261,6 +262,7 @@ private val payloadFields: WebhookEventPartial.() -> Unit = {
         project { key() }
         number()
         title()
+        feedChannelId()
         branchPairs {
             repository()
             sourceBranchInfo()
@@ -95,7 +95,8 @@ sealed interface TriggerCause {
     data class BranchPush(
         val head: String,
         override val commitId: String,
-        val url: String
+        val url: String,
+        val oldCommitId: String? = null
     ): TriggerCause {
         override val branchForCheckout = head
     }
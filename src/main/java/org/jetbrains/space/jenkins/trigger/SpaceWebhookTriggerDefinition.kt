@@ -1,15 +1,77 @@
 package org.jetbrains.space.jenkins.trigger
 
+import org.jetbrains.space.jenkins.scm.BranchPattern
+import org.jetbrains.space.jenkins.scm.PatternBuilder
+
 /**
  * Represents input data for creating a webhook in SpaceCode for either a job trigger or a multibranch project branch source.
+ *
+ * Definitions are immutable and are created once per configuration of a trigger or a branch source
+ * (see [SpaceWebhookTrigger.getDefinition] and [org.jetbrains.space.jenkins.scm.SpaceSCMSource.getWebhookDefinition]),
+ * so the regular expressions and branch spec matchers are compiled only once and then reused for every incoming event or scan.
  */
 sealed class SpaceWebhookTriggerDefinition {
-    class Branches(val branchSpec: String) : SpaceWebhookTriggerDefinition()
 
-    class MergeRequests(
+    /**
+     * Semicolon-separated specification of the repository paths that should trigger the build when changed,
+     * with `+:` and `-:` prefixes for included and excluded paths, or null or blank if changes to any path should trigger the build
+     */
+    abstract val pathSpec: String?
+
+    /**
+     * Lines of the [pathSpec], or an empty list if no filter by path is configured.
+     * Specification with exclusions only includes all the other paths, as if it started with `+:*`.
+     */
+    val pathSpecLines: List<String> by lazy {
+        val lines = pathSpec.orEmpty().split(';').map { it.trim() }.filterNot { it.isBlank() }
+        if (lines.isNotEmpty() && lines.none { it.isPathInclusion() })
+            listOf(PatternBuilder.includePrefix + PatternBuilder.asterisk) + lines
+        else
+            lines
+    }
+
+    /**
+     * Matcher for the changed file paths, or null if no filter by path is configured
+     */
+    val pathMatcher: PatternBuilder.Matcher? by lazy {
+        pathSpecLines.takeUnless { it.isEmpty() }?.let { BranchPattern.matcher(it, isRegex = false) }
+    }
+
+    data class Branches(val branchSpec: String, override val pathSpec: String? = null) : SpaceWebhookTriggerDefinition()
+
+    data class MergeRequests(
         val titleRegex: String?,
         val sourceBranchSpec: String?,
         val targetBranchSpec: String?,
-        val isMergeRequestApprovalsRequired: Boolean
-    ) : SpaceWebhookTriggerDefinition()
-}
\ No newline at end of file
+        val isMergeRequestApprovalsRequired: Boolean,
+        override val pathSpec: String? = null
+    ) : SpaceWebhookTriggerDefinition() {
+
+        /**
+         * Compiled merge request title filter, or null if no filter by title is configured
+         */
+        val compiledTitleRegex: Regex? by lazy {
+            titleRegex?.takeUnless { it.isBlank() }?.let { Regex(it) }
+        }
+
+        /**
+         * Matcher for the merge request source branch, or null if no filter by source branch is configured
+         */
+        val sourceBranchMatcher: PatternBuilder.Matcher? by lazy {
+            compileBranchSpec(sourceBranchSpec)
+        }
+
+        /**
+         * Matcher for the merge request target branch, or null if no filter by target branch is configured
+         */
+        val targetBranchMatcher: PatternBuilder.Matcher? by lazy {
+            compileBranchSpec(targetBranchSpec)
+        }
+    }
+}
+
+private fun String.isPathInclusion() =
+    !startsWith(PatternBuilder.excludePrefix) && !startsWith("-") && !startsWith("^") && !startsWith(PatternBuilder.commentPrefix)
+
+private fun compileBranchSpec(branchSpec: String?) =
+    branchSpec?.takeUnless { it.isBlank() }?.let { BranchPattern.matcher(it.split(","), isRegex = false) }
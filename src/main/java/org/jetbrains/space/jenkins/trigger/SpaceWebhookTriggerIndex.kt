@@ -0,0 +1,87 @@
+package org.jetbrains.space.jenkins.trigger
+
+import hudson.security.ACL
+import jenkins.model.Jenkins
+import jenkins.triggers.TriggeredItem
+import org.jetbrains.space.jenkins.config.SpaceConnectionsSnapshot
+import org.jetbrains.space.jenkins.config.SpaceProjectConnectionJobProperty
+import org.jetbrains.space.jenkins.config.getConnectionsSnapshot
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Index of all the SpaceCode webhook triggers configured in Jenkins jobs, grouped by the id of the SpaceCode webhook they are subscribed to
+ * and by the client ids of the SpaceCode applications (org-level and project-level) their jobs are connected through.
+ *
+ * Allows to find all the triggers interested in an incoming webhook event or affected by the application authorization
+ * without walking through all the Jenkins items for every event.
+ * It is built lazily and dropped whenever a Jenkins item is created, updated, saved or removed
+ * or the SpaceCode webhook id of a trigger changes.
+ */
+object SpaceWebhookTriggerIndex {
+
+    @Volatile
+    private var index: Index? = null
+
+    private val generation = AtomicLong()
+
+    /**
+     * Returns the triggers subscribed to the given SpaceCode webhook.
+     */
+    fun getTriggers(spaceWebhookId: String): List<SpaceWebhookTrigger> =
+        getIndex().byWebhookId[spaceWebhookId].orEmpty()
+
+    /**
+     * Returns the triggers of the standalone jobs connected to SpaceCode through the application with the given client id,
+     * either org-level application or project-level one.
+     */
+    fun getTriggersBySpaceClientId(spaceClientId: String): List<SpaceWebhookTrigger> =
+        getIndex().byClientId[spaceClientId].orEmpty()
+
+    /**
+     * Drops the index so that it gets rebuilt on the next access.
+     */
+    fun invalidate() {
+        generation.incrementAndGet()
+        index = null
+    }
+
+    private fun getIndex(): Index {
+        index?.let { return it }
+
+        val buildGeneration = generation.get()
+        val built = ACL.as2(ACL.SYSTEM2).use {
+            val snapshot = getConnectionsSnapshot()
+            val triggers = Jenkins.get().getAllItems(TriggeredItem::class.java)
+                .flatMap { it.triggers?.values.orEmpty() }
+                .filterIsInstance<SpaceWebhookTrigger>()
+            Index(
+                byWebhookId = triggers
+                    .filter { it.spaceWebhookId != null }
+                    .groupBy { it.spaceWebhookId },
+                byClientId = triggers
+                    .flatMap { trigger -> trigger.getSpaceClientIds(snapshot).map { it to trigger } }
+                    .groupBy({ it.first }, { it.second })
+            )
+        }
+        // do not store the index if it has been invalidated while being built, it might be missing the latest changes
+        if (generation.get() == buildGeneration) {
+            index = built
+        }
+        return built
+    }
+
+    private class Index(
+        val byWebhookId: Map<String, List<SpaceWebhookTrigger>>,
+        val byClientId: Map<String, List<SpaceWebhookTrigger>>
+    )
+}
+
+/**
+ * Returns the client ids of the org-level and project-level SpaceCode applications the standalone job of this trigger is connected through.
+ */
+private fun SpaceWebhookTrigger.getSpaceClientIds(snapshot: SpaceConnectionsSnapshot): List<String> {
+    val job = job ?: return emptyList()
+    val spaceProjectProperty = job.getProperty(SpaceProjectConnectionJobProperty::class.java) ?: return emptyList()
+    val rootConnection = snapshot.getConnection(spaceProjectProperty.spaceConnectionId) ?: return emptyList()
+    return listOfNotNull(rootConnection.clientId, snapshot.getJobConnection(rootConnection.id, job.fullName)?.clientId).distinct()
+}
@@ -0,0 +1,103 @@
+package org.jetbrains.space.jenkins.trigger
+
+import hudson.security.ACL
+import hudson.util.DaemonThreadFactory
+import hudson.util.NamingThreadFactory
+import jenkins.util.SystemProperties
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * Re-registers SpaceCode webhooks for the job triggers after the SpaceCode application has been (re-)authorized.
+ *
+ * Every webhook registration is a blocking round trip to SpaceCode, and an org-level application can serve hundreds of jobs,
+ * so the registration runs in the background instead of within the webhook request that signals the authorization.
+ * Triggers affected by the application are taken from [SpaceWebhookTriggerIndex] and processed with bounded parallelism
+ * (configurable with the `org.jetbrains.space.jenkins.trigger.SpaceWebhooksReRegistration.parallelism` system property),
+ * with the progress reported to the Jenkins log.
+ *
+ * Repeated authorization events for an application that arrive while its re-registration is still running
+ * do not start another one concurrently, the running re-registration is repeated once it completes instead.
+ */
+object SpaceWebhooksReRegistration {
+
+    private val inProgress = ConcurrentHashMap<String, AtomicBoolean>()
+
+    /**
+     * Schedules the re-registration of webhooks for all the triggers affected by the SpaceCode application with the given client id.
+     */
+    fun schedule(spaceClientId: String) {
+        var started = false
+        inProgress.compute(spaceClientId) { _, repeatRequested ->
+            repeatRequested?.apply { set(true) }
+                ?: AtomicBoolean(false).also { started = true }
+        }
+        if (started) {
+            coordinator.execute { run(spaceClientId) }
+        }
+    }
+
+    private fun run(spaceClientId: String) {
+        while (true) {
+            try {
+                reRegisterWebhooks(spaceClientId)
+            } catch (ex: Throwable) {
+                LOGGER.log(Level.WARNING, "Error while re-registering webhooks for SpaceCode application $spaceClientId", ex)
+            }
+
+            // keep the entry and go for another round if repeat has been requested, otherwise remove it atomically
+            val repeat = inProgress.computeIfPresent(spaceClientId) { _, repeatRequested ->
+                repeatRequested.takeIf { it.getAndSet(false) }
+            } != null
+            if (!repeat)
+                return
+        }
+    }
+
+    private fun reRegisterWebhooks(spaceClientId: String) {
+        val triggers = SpaceWebhookTriggerIndex.getTriggersBySpaceClientId(spaceClientId)
+        if (triggers.isEmpty())
+            return
+
+        LOGGER.info("Re-registering SpaceCode webhooks for ${triggers.size} triggers of SpaceCode application $spaceClientId")
+        val futures = triggers.map { trigger ->
+            trigger to workers.submit {
+                ACL.as2(ACL.SYSTEM2).use { trigger.ensureSpaceWebhook() }
+            }
+        }
+
+        var failed = 0
+        val progressStep = maxOf(futures.size / 10, 1)
+        futures.forEachIndexed { index, (trigger, future) ->
+            try {
+                future.get()
+            } catch (ex: ExecutionException) {
+                failed++
+                LOGGER.log(Level.WARNING, "Error while setting up webhook for job ${trigger.job?.fullDisplayName}", ex.cause)
+            }
+            val done = index + 1
+            if (done % progressStep == 0 && done < futures.size) {
+                LOGGER.info("Re-registered SpaceCode webhooks for $done of ${futures.size} triggers of SpaceCode application $spaceClientId")
+            }
+        }
+        LOGGER.info("Finished re-registering SpaceCode webhooks for ${futures.size} triggers of SpaceCode application $spaceClientId, $failed failed")
+    }
+
+    private val parallelism =
+        SystemProperties.getInteger(SpaceWebhooksReRegistration::class.java.name + ".parallelism", 4).coerceAtLeast(1)
+
+    private val coordinator = Executors.newCachedThreadPool(
+        NamingThreadFactory(DaemonThreadFactory(), "SpaceCode webhooks re-registration")
+    )
+
+    private val workers = Executors.newFixedThreadPool(
+        parallelism,
+        NamingThreadFactory(DaemonThreadFactory(), "SpaceCode webhooks re-registration worker")
+    )
+}
+
+private val LOGGER = Logger.getLogger(SpaceWebhooksReRegistration::class.java.name)
@@ -0,0 +1,274 @@
+package org.jetbrains.space.jenkins.trigger
+
+import hudson.model.*
+import hudson.util.DaemonThreadFactory
+import hudson.util.NamingThreadFactory
+import jenkins.model.CauseOfInterruption
+import jenkins.model.Jenkins
+import jenkins.plugins.git.AbstractGitSCMSource
+import jenkins.scm.api.SCMRevisionAction
+import jenkins.triggers.TriggeredItem
+import kotlinx.coroutines.runBlocking
+import org.jenkinsci.plugins.workflow.multibranch.BranchJobProperty
+import org.jetbrains.space.jenkins.config.withSharedApiClient
+import org.jetbrains.space.jenkins.getMultiBranchSpaceScmSource
+import org.jetbrains.space.jenkins.getProjectConnection
+import org.jetbrains.space.jenkins.scm.SpaceSCMHead
+import space.jetbrains.api.runtime.resources.projects
+import space.jetbrains.api.runtime.types.CommitExecutionStatus
+import space.jetbrains.api.runtime.types.ProjectIdentifier
+import java.lang.ref.WeakReference
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * Cancels queued and aborts running builds that have been superseded by a newer build of the same job
+ * for the same branch or merge request, when enabled with the "Abort superseded builds" option
+ * of the [SpaceWebhookTrigger] or of the [org.jetbrains.space.jenkins.scm.SpaceSCMSource].
+ *
+ * Every push to a branch or a merge request schedules another build, while the builds for the previous commits
+ * keep occupying executors even though their results are no longer of interest.
+ * Builds in flight are indexed by job, repository and branch or merge request, and are tracked from entering the queue till completion.
+ * When a build for a different commit is queued, the builds scheduled earlier are cancelled if still in queue or aborted if already running.
+ * Cancelled queue items are reported to SpaceCode as terminated external checks for their commits,
+ * aborted builds are reported as terminated by the regular build completion handling.
+ *
+ * Safe merge builds are never cancelled, since SpaceCode waits for their results.
+ * Cancellation happens on a background thread, because queue listeners are invoked while holding the Jenkins queue lock.
+ */
+object SupersededBuilds {
+
+    /**
+     * Registers the build that has entered the queue and cancels the builds it supersedes.
+     */
+    fun onQueued(item: Queue.Item) {
+        val job = item.task as? Job<*, *> ?: return
+        val target = getBuildTarget(job, item.causes, item) ?: return
+
+        val superseded = synchronized(buildsByKey) {
+            evictStale()
+            if (buildsByQueueId.containsKey(item.id))
+                return
+
+            val builds = buildsByKey.getOrPut(target.key) { mutableListOf() }
+            val superseded = builds.filter { it.queueId < item.id && it.target.commit != target.commit && !it.superseded }
+            superseded.forEach { it.superseded = true }
+
+            val build = InFlightBuild(item.id, target)
+            builds.add(build)
+            buildsByQueueId[item.id] = build
+            superseded
+        }
+
+        if (superseded.isNotEmpty()) {
+            executor.execute {
+                superseded.forEach { abort(it, item.id) }
+            }
+        }
+    }
+
+    /**
+     * Unregisters the build cancelled while in queue, reporting it to SpaceCode if it has been cancelled as superseded.
+     */
+    fun onLeft(item: Queue.LeftItem) {
+        val build = synchronized(buildsByKey) {
+            val build = buildsByQueueId[item.id] ?: return
+            if (!item.isCancelled) {
+                build.leftQueueAt = System.currentTimeMillis()
+                return
+            }
+            remove(build)
+            build
+        }
+
+        if (build.superseded) {
+            val job = item.task as? Job<*, *> ?: return
+            executor.execute { reportTerminated(job, item, build.target) }
+        }
+    }
+
+    /**
+     * Attaches the build to its registered queue item, aborting it right away
+     * if it has been superseded while leaving the queue.
+     */
+    fun onStarted(run: Run<*, *>) {
+        val build = synchronized(buildsByKey) {
+            buildsByQueueId[run.queueId]?.also { it.run = WeakReference(run) }
+        } ?: return
+
+        if (build.superseded) {
+            executor.execute { abort(build, null) }
+        }
+    }
+
+    fun onCompleted(run: Run<*, *>) {
+        synchronized(buildsByKey) {
+            buildsByQueueId[run.queueId]?.let { remove(it) }
+        }
+    }
+
+    private fun abort(build: InFlightBuild, newerQueueId: Long?) {
+        try {
+            val run = build.run?.get()
+            if (run != null) {
+                if (build.aborted.compareAndSet(false, true)) {
+                    LOGGER.info("Aborting build ${run.fullDisplayName} superseded by a newer build for commit ${build.target.commit}")
+                    (run.executor ?: run.oneOffExecutor)?.interrupt(Result.ABORTED, SupersededBuildInterruption())
+                }
+                return
+            }
+
+            val queue = Jenkins.get().queue
+            val cancelled = queue.getItem(build.queueId)?.let { queue.cancel(it) } == true
+            if (cancelled) {
+                LOGGER.info("Cancelled queue item ${build.queueId} superseded by queue item ${newerQueueId ?: "unknown"}")
+            }
+            // otherwise the item has just left the queue, and the build will be aborted as soon as it starts
+        } catch (ex: Throwable) {
+            LOGGER.log(Level.WARNING, "Failed to abort superseded build for queue item ${build.queueId}", ex)
+        }
+    }
+
+    private fun reportTerminated(job: Job<*, *>, item: Queue.LeftItem, target: BuildTarget) {
+        val (projectConnection, spaceUrl) = job.getProjectConnection() ?: return
+        val taskName = job.fullName
+        try {
+            runBlocking {
+                projectConnection.withSharedApiClient(spaceUrl) { spaceClient ->
+                    @Suppress("DEPRECATION")
+                    spaceClient.projects.repositories.revisions.externalChecks.reportExternalCheckStatus(
+                        project = ProjectIdentifier.Key(target.projectKey),
+                        repository = target.repository,
+                        revision = target.commit,
+                        branch = target.cause.branchForCheckout,
+                        changes = emptyList(),
+                        executionStatus = CommitExecutionStatus.TERMINATED,
+                        url = if (Jenkins.get().rootUrl != null) Jenkins.get().rootUrl + item.url else item.url,
+                        externalServiceName = "Jenkins",
+                        taskName = taskName,
+                        taskId = taskName,
+                        taskBuildId = BuildIdPrefix.QUEUE_ITEM + item.id,
+                        timestamp = item.inQueueSince,
+                        description = "Superseded by a newer build"
+                    )
+                }
+            }
+        } catch (ex: Throwable) {
+            LOGGER.log(Level.WARNING, "Failed to report superseded build of \"$taskName\" to SpaceCode", ex)
+        }
+    }
+
+    /**
+     * Determines the branch or merge request and the commit the build is for,
+     * or returns null if aborting superseded builds is not enabled for the job or is not applicable to the build.
+     */
+    private fun getBuildTarget(job: Job<*, *>, causes: List<Cause>, actionable: Actionable): BuildTarget? {
+        val triggerCause = causes.filterIsInstance<SpaceWebhookTriggerCause>().firstOrNull()
+        if (triggerCause != null) {
+            if (triggerCause.mergeRequest?.safeMerge != null || !job.isAbortSupersededBuildsEnabled())
+                return null
+
+            return BuildTarget(
+                jobFullName = job.fullName,
+                projectKey = triggerCause.projectKey,
+                repository = triggerCause.repositoryName,
+                cause = triggerCause.cause,
+                commit = triggerCause.cause.commitId ?: return null
+            )
+        }
+
+        if (job.getProperty(BranchJobProperty::class.java) == null)
+            return null
+        val source = job.getMultiBranchSpaceScmSource()?.takeIf { it.isAbortSupersededBuilds } ?: return null
+        val head = job.getProperty(BranchJobProperty::class.java).branch.head as? SpaceSCMHead ?: return null
+        val revision = SCMRevisionAction.getRevision(source, actionable) as? AbstractGitSCMSource.SCMRevisionImpl
+        return BuildTarget(
+            jobFullName = job.fullName,
+            projectKey = source.projectKey,
+            repository = source.repository,
+            cause = head.triggerCause ?: return null,
+            commit = revision?.hash ?: head.latestCommit
+        )
+    }
+
+    private fun Job<*, *>.isAbortSupersededBuildsEnabled() =
+        (this as? TriggeredItem)?.triggers?.values?.filterIsInstance<SpaceWebhookTrigger>()
+            ?.any { it.isAbortSupersededBuilds } == true
+
+    private fun remove(build: InFlightBuild) {
+        buildsByQueueId.remove(build.queueId)
+        buildsByKey[build.target.key]?.let { builds ->
+            builds.remove(build)
+            if (builds.isEmpty())
+                buildsByKey.remove(build.target.key)
+        }
+    }
+
+    /**
+     * Drops the builds that have left the queue long ago but never started or whose runs have been garbage collected,
+     * so that builds missed by the listeners (for example, because of plugin reload) do not stay in the index forever.
+     */
+    private fun evictStale() {
+        val now = System.currentTimeMillis()
+        buildsByQueueId.values
+            .filter { build ->
+                build.leftQueueAt?.let { now - it > RETENTION_MILLIS } == true && build.run?.get() == null
+            }
+            .forEach { remove(it) }
+    }
+
+    private data class BuildKey(val jobFullName: String, val repository: String, val ref: String)
+
+    private class BuildTarget(
+        jobFullName: String,
+        val projectKey: String,
+        val repository: String,
+        val cause: TriggerCause,
+        val commit: String
+    ) {
+        val key = BuildKey(
+            jobFullName,
+            repository,
+            when (cause) {
+                is TriggerCause.MergeRequest -> "review:" + cause.id
+                is TriggerCause.BranchPush -> "branch:" + cause.head
+            }
+        )
+    }
+
+    private class InFlightBuild(val queueId: Long, val target: BuildTarget) {
+        @Volatile
+        var run: WeakReference<Run<*, *>>? = null
+
+        @Volatile
+        var leftQueueAt: Long? = null
+
+        @Volatile
+        var superseded = false
+
+        val aborted = AtomicBoolean(false)
+    }
+
+    private val buildsByKey = HashMap<BuildKey, MutableList<InFlightBuild>>()
+
+    private val buildsByQueueId = HashMap<Long, InFlightBuild>()
+
+    private val executor = Executors.newSingleThreadExecutor(
+        NamingThreadFactory(DaemonThreadFactory(), "SpaceCode superseded builds")
+    )
+
+    private val RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1)
+}
+
+/**
+ * Cause of the build interruption shown in the build log and on the build page when the build is aborted by [SupersededBuilds].
+ */
+class SupersededBuildInterruption : CauseOfInterruption() {
+    override fun getShortDescription() =
+        "Superseded by a newer build for the same branch or merge request"
+}
+
+private val LOGGER = Logger.getLogger(SupersededBuilds::class.java.name)
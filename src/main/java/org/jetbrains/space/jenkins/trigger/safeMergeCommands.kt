@@ -1,6 +1,5 @@
 package org.jetbrains.space.jenkins.trigger
 
-import hudson.ExtensionList
 import hudson.model.*
 import hudson.model.Queue.LeftItem
 import hudson.model.queue.ScheduleResult.Created
@@ -8,6 +7,7 @@ import hudson.model.queue.ScheduleResult.Existing
 import hudson.model.queue.ScheduleResult.Refused
 import hudson.security.ACL
 import io.ktor.http.*
+import jenkins.branch.MultiBranchProject
 import jenkins.model.Jenkins
 import jenkins.triggers.TriggeredItem
 import org.jetbrains.space.jenkins.*
@@ -33,13 +33,13 @@ import java.util.logging.Logger
  */
 @OptIn(ExperimentalSpaceSdkApi::class)
 suspend fun ProcessingScope.startSafeMerge(clientId: String, command: SafeMergeCommand.Start, requestAdapter: RequestAdapter): SpaceHttpResponse {
-    val (spaceConnection, spaceUrl) = getProjectConnectionByClientId(clientId)
+    val connection = getProjectConnectionByClientId(clientId)
         ?: return SpaceHttpResponse.RespondWithCode(HttpStatusCode.Unauthorized)
 
     val job = ACL.as2(ACL.SYSTEM2)
         .use {
             (Jenkins.get().getItemByFullName(command.project) as? Job<*, *>)
-                ?.takeIf { it.getSpaceClientId() == clientId }
+                ?.takeIf { connection.isConnectedTo(it) }
         }
         ?: return SpaceHttpResponse.RespondWithCode(HttpStatusCode.NotFound)
 
@@ -49,22 +49,22 @@ suspend fun ProcessingScope.startSafeMerge(clientId: String, command: SafeMergeC
             return SpaceHttpResponse.RespondWithCode(HttpStatusCode.NotFound)
         }
 
-    // check that safe merge is enabled for this Jenkins project
-    (job as? TriggeredItem)?.triggers?.values?.filterIsInstance<SpaceWebhookTrigger>()
-        ?.firstOrNull { it.triggerType == SpaceWebhookTriggerType.OnlySafeMerge || it.allowSafeMerge }
-        ?: run {
-            LOGGER.warning("Safe merge trigger is not enabled for the job \"${command.project}\"")
-            return SpaceHttpResponse.RespondWithCode(HttpStatusCode.Unauthorized)
-        }
+    if (!job.isSafeMergeAllowed()) {
+        LOGGER.warning("Safe merge is not enabled for the job \"${command.project}\"")
+        return SpaceHttpResponse.RespondWithCode(HttpStatusCode.Unauthorized)
+    }
 
-    // fetch additional data about the merge request from SpaceCode
-    val mergeRequest = spaceConnection.getApiClient(spaceUrl).use {
-        it.projects.codeReviews.getCodeReview(
+    // always fetch additional data about the merge request from SpaceCode instead of taking it from the latest webhook,
+    // because the safe merge build must see the current title, branches and commits of the merge request;
+    // the fresh record then serves the checkout of the build from the cache
+    val spaceUrl = connection.spaceUrl
+    val mergeRequest = connection.projectConnection.withSharedApiClient(spaceUrl) { spaceClient ->
+        spaceClient.projects.codeReviews.getCodeReview(
             ProjectIdentifier.Id(command.spaceProjectId),
             ReviewIdentifier.Id(command.mergeRequestId),
             mergeRequestFields
-        )
-    } as MergeRequestRecord
+        ) as MergeRequestRecord
+    }.also { MergeRequestCache.put(spaceUrl, it, feedChannelId = null) }
 
     val causeAction = CauseAction(
         SpaceWebhookTriggerCause.fromMergeRequest(
@@ -77,6 +77,7 @@ suspend fun ProcessingScope.startSafeMerge(clientId: String, command: SafeMergeC
     when (val scheduleResult = Jenkins.get().queue.schedule2(job, 0, causeAction)) {
         is Created, is Existing -> {
             LOGGER.info("Scheduled safe merge build for ${command.project}")
+            SafeMergeExecutions.onQueued(scheduleResult.item!!)
             requestAdapter.respond(HttpStatusCode.OK.value, JenkinsBuildStructure.serialize(scheduleResult.item!!.toJenkinsBuild()).print())
             return SpaceHttpResponse.AlreadyResponded
         }
@@ -98,7 +99,10 @@ suspend fun ProcessingScope.startSafeMerge(clientId: String, command: SafeMergeC
  */
 @OptIn(ExperimentalSpaceSdkApi::class)
 suspend fun ProcessingScope.stopSafeMerge(clientId: String, command: SafeMergeCommand.Stop, requestAdapter: RequestAdapter): SpaceHttpResponse {
-    val result = when (val result = getQueueItemOrBuild(command.project, command.buildId, clientId)) {
+    val connection = getProjectConnectionByClientId(clientId)
+        ?: return SpaceHttpResponse.RespondWithCode(HttpStatusCode.Unauthorized)
+
+    val result = when (val result = getQueueItemOrBuild(command.project, command.buildId, connection)) {
         is GetQueueItemOrBuildResult.QueueItem -> {
             if (!Jenkins.get().queue.cancel(result.queueItem)) {
                 LOGGER.info("Could not cancel the queue item  ${command.buildId}")
@@ -129,7 +133,10 @@ suspend fun ProcessingScope.stopSafeMerge(clientId: String, command: SafeMergeCo
  */
 @OptIn(ExperimentalSpaceSdkApi::class)
 suspend fun ProcessingScope.fetchSafeMergeStatus(clientId: String, command: SafeMergeCommand.FetchStatus, requestAdapter: RequestAdapter): SpaceHttpResponse {
-    val result = when (val result = getQueueItemOrBuild(command.project, command.buildId, clientId)) {
+    val connection = getProjectConnectionByClientId(clientId)
+        ?: return SpaceHttpResponse.RespondWithCode(HttpStatusCode.Unauthorized)
+
+    val result = when (val result = getQueueItemOrBuild(command.project, command.buildId, connection)) {
         is GetQueueItemOrBuildResult.QueueItem ->
             result.queueItem.toJenkinsBuild()
         is GetQueueItemOrBuildResult.Build ->
@@ -143,16 +150,36 @@ suspend fun ProcessingScope.fetchSafeMergeStatus(clientId: String, command: Safe
     return SpaceHttpResponse.AlreadyResponded
 }
 
-private fun getProjectConnectionByClientId(clientId: String): Pair<SpaceProjectConnection, String>? {
-    val spacePluginConfiguration = ExtensionList.lookup(SpacePluginConfiguration::class.java).singleOrNull()
-        ?: error("SpaceCode plugin configuration cannot be resolved")
+/**
+ * Finds the project-level connection (of either a job or a multibranch project branch source) by the client id of its SpaceCode application.
+ * Uses the client id index of the connections snapshot, so that the frequent safe merge status polling from SpaceCode stays cheap.
+ */
+private fun getProjectConnectionByClientId(clientId: String): SpaceProjectConnectionEntry? =
+    getConnectionsSnapshot().getProjectConnectionByClientId(clientId)
+
+/**
+ * Checks whether the given job belongs to the Jenkins job or multibranch project the project-level connection has been established for.
+ * For branch jobs of multibranch projects, the project can have several SpaceCode branch sources with different connections,
+ * so the connection of the job's own branch source is checked as well.
+ */
+/**
+ * Checks that safe merge is enabled for the Jenkins job,
+ * either by its SpaceCode trigger or, for a branch job of a multibranch project, by the SpaceCode branch source that has created the job.
+ */
+private fun Job<*, *>.isSafeMergeAllowed() =
+    getMultiBranchSpaceScmSource()?.isAllowSafeMerge
+        ?: (this as? TriggeredItem)?.triggers?.values?.filterIsInstance<SpaceWebhookTrigger>()
+            ?.any { it.triggerType == SpaceWebhookTriggerType.OnlySafeMerge || it.allowSafeMerge }
+        ?: false
 
-    return spacePluginConfiguration.connections
-        .flatMap { conn -> conn.projectConnectionsByJob?.values?.map { it to conn.baseUrl }.orEmpty() }
-        .firstOrNull { it.first.clientId == clientId }
-}
+private fun SpaceProjectConnectionEntry.isConnectedTo(job: Job<*, *>) =
+    if (isMultiBranchProject)
+        (job.parent as? MultiBranchProject<*, *>)?.fullName == jenkinsItemFullName
+                && job.getSpaceClientId() == projectConnection.clientId
+    else
+        job.fullName == jenkinsItemFullName
 
-private fun List<Cause>.hasSafeMergeCause() =
+fun List<Cause>.hasSafeMergeCause() =
     filterIsInstance<SpaceWebhookTriggerCause>().firstOrNull()?.let { it.mergeRequest?.safeMerge != null } == true
 
 /**
@@ -161,16 +188,21 @@ private fun List<Cause>.hasSafeMergeCause() =
  *
  * @param project Full name of the Jenkins job or workflow that executes safe merge. Contains of several parts split by `/` if it is nested in a folder hierarchy.
  * @param buildId Identifier of the queue item (`queue-item-` + number) or running build (`build-` + number) in Jenkins
+ * @param connection Project-level connection of the SpaceCode application that sent the command. Only builds of the jobs using this connection are returned
  */
-private fun getQueueItemOrBuild(project: String, buildId: String, spaceAppClientId: String): GetQueueItemOrBuildResult {
+private fun getQueueItemOrBuild(project: String, buildId: String, connection: SpaceProjectConnectionEntry): GetQueueItemOrBuildResult {
     when {
         buildId.startsWith(BuildIdPrefix.QUEUE_ITEM) -> {
-            val queue = Jenkins.get().queue
             val queueItemId = buildId.removePrefix(BuildIdPrefix.QUEUE_ITEM).toLongOrNull()
                 ?: return GetQueueItemOrBuildResult.Error(HttpStatusCode.BadRequest, "Cannot parse queue item id \"$buildId\"")
 
-            val queueItem = queue.getItem(queueItemId)
-                .takeIf { (it.task as? Job<*,*>)?.getProjectConnection()?.first?.clientId == spaceAppClientId }
+            // the safe merge builds registry is populated by queue and run listeners and allows to avoid queue and build lookups
+            SafeMergeExecutions.getRunByQueueId(queueItemId)
+                ?.takeIf { connection.isConnectedTo(it.parent) }
+                ?.let { return GetQueueItemOrBuildResult.Build(it) }
+
+            val queueItem = Jenkins.get().queue.getItem(queueItemId)
+                ?.takeIf { (it.task as? Job<*,*>)?.let { job -> connection.isConnectedTo(job) } == true }
                 ?: return GetQueueItemOrBuildResult.Error(HttpStatusCode.NotFound, "Queue item not found by id = $queueItemId")
 
             if (!queueItem.causes.hasSafeMergeCause())
@@ -190,7 +222,12 @@ private fun getQueueItemOrBuild(project: String, buildId: String, spaceAppClient
             val buildNumber = buildId.removePrefix(BuildIdPrefix.BUILD).toIntOrNull()
                 ?: return GetQueueItemOrBuildResult.Error(HttpStatusCode.BadRequest, "Cannot parse build id \"$buildId\"")
 
+            SafeMergeExecutions.getRun(project, buildNumber)
+                ?.takeIf { connection.isConnectedTo(it.parent) }
+                ?.let { return GetQueueItemOrBuildResult.Build(it) }
+
             val job = (Jenkins.get().getItemByFullName(project) as? Job<*, *>)
+                ?.takeIf { connection.isConnectedTo(it) }
                 ?: return GetQueueItemOrBuildResult.Error(HttpStatusCode.NotFound, "Project not found in Jenkins by name \"$project\"")
 
             val build = job.getBuildByNumber(buildNumber)
@@ -0,0 +1,140 @@
+package org.jetbrains.space.jenkins.trigger
+
+import hudson.model.Cause
+import hudson.model.Job
+import hudson.model.Queue
+import hudson.model.Run
+import hudson.util.DaemonThreadFactory
+import hudson.util.NamingThreadFactory
+import jenkins.model.Jenkins
+import jenkins.triggers.TriggeredItem
+import kotlinx.coroutines.runBlocking
+import org.jetbrains.space.jenkins.config.withSharedApiClient
+import org.jetbrains.space.jenkins.getProjectConnection
+import org.jetbrains.space.jenkins.listeners.SpaceGitScmCheckoutAction
+import org.jetbrains.space.jenkins.listeners.getSpaceExecutionStatus
+import space.jetbrains.api.runtime.resources.projects
+import space.jetbrains.api.runtime.types.CommitExecutionStatus
+import space.jetbrains.api.runtime.types.ProjectIdentifier
+import java.util.concurrent.Executors
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * Pushes the state transitions of a safe merge build to SpaceCode as soon as they happen in Jenkins
+ * (queued, started, completed or cancelled while still in queue).
+ *
+ * SpaceCode learns about safe merge progress by polling Jenkins with [SafeMergeCommand.FetchStatus],
+ * so status changes are only noticed on the next poll. When enabled in the trigger settings,
+ * the state transitions are additionally reported as external check updates for the temporary safe merge commit.
+ * While the build is in queue, the updates are tied to the queue item id that has been returned to SpaceCode as the safe merge build id.
+ * Once the build starts, they are reported for the same `build-N` execution as the statuses posted on checkout (see [org.jetbrains.space.jenkins.listeners.onBuildCompleted]),
+ * and are not pushed at all when the build has checked out the safe merge commit with status posting enabled, because it is already reported then.
+ *
+ * Status updates are sent from a single background thread in the order they have happened,
+ * because queue listeners are invoked while holding the Jenkins queue lock.
+ */
+fun onSafeMergeQueueItemEntered(item: Queue.Item) {
+    pushSafeMergeStatus(
+        job = item.task as? Job<*, *>,
+        causes = item.causes,
+        taskBuildId = BuildIdPrefix.QUEUE_ITEM + item.id,
+        build = null,
+        status = CommitExecutionStatus.SCHEDULED,
+        url = item.getAbsoluteUrl(),
+        timestamp = item.inQueueSince,
+        description = item.why
+    )
+}
+
+fun onSafeMergeQueueItemLeft(item: Queue.LeftItem) {
+    // queue items that haven't been cancelled result in a build, its status is reported from the run listener
+    if (!item.isCancelled)
+        return
+
+    pushSafeMergeStatus(
+        job = item.task as? Job<*, *>,
+        causes = item.causes,
+        taskBuildId = BuildIdPrefix.QUEUE_ITEM + item.id,
+        build = null,
+        status = CommitExecutionStatus.TERMINATED,
+        url = item.getAbsoluteUrl(),
+        timestamp = item.inQueueSince,
+        description = "Removed from the build queue"
+    )
+}
+
+fun onSafeMergeBuildStartedOrCompleted(build: Run<*, *>) {
+    pushSafeMergeStatus(
+        job = build.parent,
+        causes = build.causes,
+        taskBuildId = BuildIdPrefix.BUILD + build.number,
+        build = build,
+        status = build.getSpaceExecutionStatus(),
+        url = if (Jenkins.get().rootUrl != null) build.absoluteUrl else build.url,
+        timestamp = build.startTimeInMillis,
+        description = build.description
+    )
+}
+
+private fun pushSafeMergeStatus(
+    job: Job<*, *>?,
+    causes: List<Cause>,
+    taskBuildId: String,
+    build: Run<*, *>?,
+    status: CommitExecutionStatus,
+    url: String,
+    timestamp: Long,
+    description: String?
+) {
+    job ?: return
+    val cause = causes.filterIsInstance<SpaceWebhookTriggerCause>().firstOrNull() ?: return
+    val safeMerge = cause.mergeRequest?.safeMerge ?: return
+    if (!job.isSafeMergeStatusPushEnabled() || build?.isStatusPostedOnCheckout(safeMerge.safeMergeCommit) == true)
+        return
+
+    val (projectConnection, spaceUrl) = job.getProjectConnection() ?: return
+    val taskName = job.fullName
+    executor.execute {
+        try {
+            runBlocking {
+                projectConnection.withSharedApiClient(spaceUrl) { spaceClient ->
+                    @Suppress("DEPRECATION")
+                    spaceClient.projects.repositories.revisions.externalChecks.reportExternalCheckStatus(
+                        project = ProjectIdentifier.Key(cause.projectKey),
+                        repository = cause.repositoryName,
+                        revision = safeMerge.safeMergeCommit,
+                        branch = safeMerge.safeMergeBranch,
+                        changes = emptyList(),
+                        executionStatus = status,
+                        url = url,
+                        externalServiceName = "Jenkins",
+                        taskName = taskName,
+                        taskId = taskName,
+                        taskBuildId = taskBuildId,
+                        timestamp = timestamp,
+                        description = description
+                    )
+                }
+            }
+        } catch (ex: Throwable) {
+            LOGGER.log(Level.WARNING, "Failed to push safe merge status $status for \"$taskName\" to SpaceCode", ex)
+        }
+    }
+}
+
+private fun Job<*, *>.isSafeMergeStatusPushEnabled() =
+    (this as? TriggeredItem)?.triggers?.values?.filterIsInstance<SpaceWebhookTrigger>()
+        ?.any { it.isPushSafeMergeStatus } == true
+
+private fun Run<*, *>.isStatusPostedOnCheckout(revision: String) =
+    getActions(SpaceGitScmCheckoutAction::class.java).any { it.postBuildStatusToSpace && it.revision == revision }
+
+private fun Queue.Item.getAbsoluteUrl() =
+    if (Jenkins.get().rootUrl != null) Jenkins.get().rootUrl + url else url
+
+private val executor = Executors.newSingleThreadExecutor(
+    NamingThreadFactory(DaemonThreadFactory(), "SpaceCode safe merge status")
+)
+
+private val LOGGER = Logger.getLogger("SafeMerge")
@@ -0,0 +1,83 @@
+package org.jetbrains.space.jenkins.scm
+
+import jenkins.scm.api.SCMFile
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class SpaceSCMFileSystemTest {
+
+    @Test
+    fun readsJenkinsfileFromRepositoryRoot() {
+        val fileSystem = SpaceSCMFileSystem(RepositoryReaderStub(mapOf("Jenkinsfile" to JENKINSFILE)), null)
+
+        val jenkinsfile = fileSystem.root.child("Jenkinsfile")
+
+        assertEquals(SCMFile.Type.REGULAR_FILE, jenkinsfile.type)
+        assertEquals(JENKINSFILE, jenkinsfile.contentAsString())
+    }
+
+    @Test
+    fun readsJenkinsfileFromNestedDirectory() {
+        val fileSystem = SpaceSCMFileSystem(RepositoryReaderStub(mapOf("ci/build/Jenkinsfile" to JENKINSFILE)), null)
+
+        val jenkinsfile = fileSystem.root.child("ci/build/Jenkinsfile")
+
+        assertEquals(SCMFile.Type.REGULAR_FILE, jenkinsfile.type)
+        assertEquals(JENKINSFILE, jenkinsfile.contentAsString())
+        assertEquals(SCMFile.Type.DIRECTORY, fileSystem.root.child("ci").type)
+    }
+
+    @Test
+    fun reportsMissingJenkinsfile() {
+        val fileSystem = SpaceSCMFileSystem(RepositoryReaderStub(mapOf("README.md" to "readme")), null)
+
+        assertEquals(SCMFile.Type.NONEXISTENT, fileSystem.root.child("Jenkinsfile").type)
+    }
+
+    @Test
+    fun listsRootDirectory() {
+        val fileSystem = SpaceSCMFileSystem(RepositoryReaderStub(mapOf("Jenkinsfile" to JENKINSFILE, "src/Main.kt" to "")), null)
+
+        val children = fileSystem.root.children().associate { it.name to it.type }
+
+        assertEquals(mapOf("Jenkinsfile" to SCMFile.Type.REGULAR_FILE, "src" to SCMFile.Type.DIRECTORY), children)
+    }
+
+    /**
+     * Serves the given files the way SpaceCode lists them: a single entry for a file path and the direct children for a directory path.
+     */
+    private class RepositoryReaderStub(private val files: Map<String, String>) : SpaceRepositoryReader {
+
+        override fun listEntries(path: String): List<SpaceRepositoryEntry> {
+            files[path]?.let { return listOf(SpaceRepositoryEntry(path, SCMFile.Type.REGULAR_FILE)) }
+
+            val prefix = if (path.isEmpty()) "" else "$path/"
+            return files.keys
+                .filter { it.startsWith(prefix) }
+                .map { it.removePrefix(prefix).substringBefore('/') }
+                .distinct()
+                .map { name ->
+                    val childPath = prefix + name
+                    SpaceRepositoryEntry(childPath, if (files.containsKey(childPath)) SCMFile.Type.REGULAR_FILE else SCMFile.Type.DIRECTORY)
+                }
+        }
+
+        override fun readFile(path: String) =
+            files[path]?.toByteArray(Charsets.UTF_8) ?: error("No file at $path")
+    }
+
+    companion object {
+        private val JENKINSFILE = """
+            pipeline {
+                agent any
+                stages {
+                    stage('Build') {
+                        steps {
+                            echo 'Ünïcödé is preserved'
+                        }
+                    }
+                }
+            }
+        """.trimIndent()
+    }
+}
@@ -0,0 +1,83 @@
+package org.jetbrains.space.jenkins.trigger
+
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.*
+import org.junit.Test
+import java.io.IOException
+
+class SpaceChangedFilesTest {
+
+    @Test
+    fun parsesCommitChangesResponse() {
+        val batch = parseCommitChangesBatch(readResource("commit-changes.json"))
+
+        assertEquals(
+            listOf("src/main/kotlin/Feature.kt", "Jenkinsfile", "Jenkinsfile", "docs/setup.md", "docs/install.md"),
+            batch.paths
+        )
+        assertEquals(3, batch.changesCount)
+        assertEquals("3", batch.next)
+        assertEquals(4, batch.totalCount)
+    }
+
+    @Test
+    fun parsesLastCommitChangesBatch() {
+        val batch = parseCommitChangesBatch("""{"data": [{"old": {"path": "build.gradle"}}]}""")
+
+        assertEquals(listOf("build.gradle"), batch.paths)
+        assertNull(batch.next)
+        assertNull(batch.totalCount)
+    }
+
+    @Test
+    fun rejectsUnexpectedCommitChangesResponse() {
+        listOf(
+            """<html>Not found</html>""",
+            """{"error": "not-found"}""",
+            """{"data": [{"changeType": "ADDED"}]}"""
+        ).forEach { body ->
+            assertThrows(IOException::class.java) { parseCommitChangesBatch(body) }
+        }
+    }
+
+    @Test
+    fun collectsAllBatchesFollowingSkipCursor() {
+        val requestedSkips = mutableListOf<String?>()
+        val batches = mapOf(
+            null to CommitChangesBatch(listOf("a.txt", "b.txt"), 2, "2", 3),
+            "2" to CommitChangesBatch(listOf("a.txt", "c.txt"), 1, "3", 3),
+            "3" to CommitChangesBatch(emptyList(), 0, "3", 3)
+        )
+
+        val paths = runBlocking {
+            collectCommitRangeChanges("changes") { skip ->
+                requestedSkips.add(skip)
+                batches.getValue(skip)
+            }
+        }
+
+        assertEquals(listOf("a.txt", "b.txt", "c.txt"), paths)
+        assertEquals(listOf(null, "2", "3"), requestedSkips)
+    }
+
+    @Test
+    fun stopsWhenSkipCursorDoesNotAdvance() {
+        val paths = runBlocking {
+            collectCommitRangeChanges("changes") { CommitChangesBatch(listOf("a.txt"), 1, "1", null) }
+        }
+
+        assertEquals(listOf("a.txt"), paths)
+    }
+
+    @Test
+    fun failsOnTruncatedListing() {
+        assertThrows(IOException::class.java) {
+            runBlocking {
+                collectCommitRangeChanges("changes") { CommitChangesBatch(listOf("a.txt"), 1, null, 5) }
+            }
+        }
+    }
+
+    private fun readResource(name: String) =
+        javaClass.getResource(name)!!.readText()
+}
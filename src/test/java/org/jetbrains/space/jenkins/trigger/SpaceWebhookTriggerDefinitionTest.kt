@@ -0,0 +1,74 @@
+package org.jetbrains.space.jenkins.trigger
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class SpaceWebhookTriggerDefinitionTest {
+
+    @Test
+    fun blankPathSpecDisablesPathFiltering() {
+        listOf(null, "", "  ", " ; ;").forEach { pathSpec ->
+            val trigger = SpaceWebhookTriggerDefinition.Branches("*", pathSpec)
+
+            assertEquals(emptyList<String>(), trigger.pathSpecLines)
+            assertNull(trigger.pathMatcher)
+        }
+    }
+
+    @Test
+    fun splitsPathSpecIntoTrimmedLines() {
+        val trigger = SpaceWebhookTriggerDefinition.Branches("*", " src/* ; ;-:src/test/* ")
+
+        assertEquals(listOf("src/*", "-:src/test/*"), trigger.pathSpecLines)
+    }
+
+    @Test
+    fun matchesOnlyIncludedPaths() {
+        val matcher = SpaceWebhookTriggerDefinition.Branches("*", "src/*;docs/index.md").pathMatcher!!
+
+        assertTrue(matcher.matches("src/main/Main.kt"))
+        assertTrue(matcher.matches("docs/index.md"))
+        assertFalse(matcher.matches("docs/setup.md"))
+        assertFalse(matcher.matches("README.md"))
+    }
+
+    @Test
+    fun exclusionsOnlyPathSpecIncludesEverythingElse() {
+        val trigger = SpaceWebhookTriggerDefinition.Branches("*", "-:docs/*;^*.md")
+
+        assertEquals(listOf("+:*", "-:docs/*", "^*.md"), trigger.pathSpecLines)
+
+        val matcher = trigger.pathMatcher!!
+        assertTrue(matcher.matches("src/main/Main.kt"))
+        assertTrue(matcher.matches("Jenkinsfile"))
+        assertFalse(matcher.matches("docs/images/logo.png"))
+        assertFalse(matcher.matches("README.md"))
+        assertFalse(matcher.matches("src/CHANGELOG.md"))
+    }
+
+    @Test
+    fun exclusionsTakePrecedenceOverInclusions() {
+        val trigger = SpaceWebhookTriggerDefinition.MergeRequests(
+            titleRegex = null,
+            sourceBranchSpec = null,
+            targetBranchSpec = null,
+            isMergeRequestApprovalsRequired = false,
+            pathSpec = "+:src/*;-:src/generated/*"
+        )
+
+        assertEquals(listOf("+:src/*", "-:src/generated/*"), trigger.pathSpecLines)
+
+        val matcher = trigger.pathMatcher!!
+        assertTrue(matcher.matches("src/main/Main.kt"))
+        assertFalse(matcher.matches("src/generated/Api.kt"))
+        assertFalse(matcher.matches("build.gradle"))
+    }
+
+    @Test
+    fun commentsOnlyPathSpecMatchesEverything() {
+        val trigger = SpaceWebhookTriggerDefinition.Branches("*", "# no filtering yet")
+
+        assertEquals(listOf("+:*", "# no filtering yet"), trigger.pathSpecLines)
+        assertTrue(trigger.pathMatcher!!.matches("src/main/Main.kt"))
+    }
+}